@@ -5,6 +5,7 @@ import com.Ox08.teleporta.v3.services.TeleLnk;
 import javax.crypto.spec.SecretKeySpec;
 import java.awt.*;
 import java.io.*;
+import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.URLConnection;
@@ -15,6 +16,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipInputStream;
@@ -32,11 +34,21 @@ public abstract class AbstractClient {
     protected static final Logger LOG = Logger.getLogger("TC");
     protected TeleCrypt tc = new TeleCrypt(); // shared instance with cryptographic functions
                                               // it's ok, because each function is atomic
+    // compress file content before encryption, if receiver supports it
+    protected final boolean compressData =
+            Boolean.parseBoolean(System.getProperty("compression", "true"));
+    // files, placed in this outgoing folder, are sent to all portals at once. Empty to disable
+    protected final String broadcastFolder = System.getProperty("broadcastFolder", "@all");
 
     public static final byte[] TELEPORTED_FILE_HEADER = "TELEPORTEDFILE".getBytes(),
-            TELEPORTA_PACKET_HEADER = "TELEPORTAPACKET".getBytes();
+            TELEPORTA_PACKET_HEADER = "TELEPORTAPACKET".getBytes(),
+            // same length as packet header, data is encrypted with shared session key
+            TELEPORTA_SESSION_PACKET_HEADER = "TELEPORTASESPKT".getBytes();
+    // max size of unread response, drained to keep connection alive
+    private static final int DRAIN_LIMIT = 64 * 1024;
 
     protected static final String ENTRY_META = "meta.properties", // zip entry with metadata
+            ENTRY_META_BIN = "meta.bin", // zip entry with metadata, in binary codec
             ENTRY_DATA = "file.content"; // zip entry with file content
 
     /**
@@ -133,6 +145,31 @@ public abstract class AbstractClient {
 
         return true; // process next
     }
+    /**
+     * Releases connection after request: reads rest of response (or error) body and closes it,
+     * so connection returns to keep-alive cache and will be reused by next request to relay.
+     * Large or broken responses just close connection.
+     * Note: disconnect() closes kept-alive connection, so it's used only to drop failed requests.
+     * @param http
+     *          finished connection
+     */
+    protected static void release(HttpURLConnection http) {
+        InputStream in;
+        try {
+            in = http.getInputStream();
+        } catch (IOException e) {
+            in = http.getErrorStream();
+        }
+        if (in == null)
+            return;
+        try (InputStream i = in) {
+            final byte[] buffer = new byte[4096];
+            for (int n, total = 0; total <= DRAIN_LIMIT && (n = i.read(buffer)) != -1; )
+                total += n;
+        } catch (IOException ignored) {
+            // already closed or broken, nothing to reuse
+        }
+    }
     /**
      * Uset User-Agent field for Teleporta client connections
      * @param hc
@@ -141,6 +178,8 @@ public abstract class AbstractClient {
     protected void setVersion(URLConnection hc,ClientRuntimeContext ctx) {
         hc.setRequestProperty("User-Agent", "Teleporta Portal/" + (ctx.respondVersion ?
                 SystemInfo.SI.getBuildVersion()  : "Unknown"));
+        // tell relay that we could read binary codec
+        hc.setRequestProperty(TeleCodec.HEADER, String.valueOf(TeleCodec.VERSION));
     }
     /**
      * Build portal name
@@ -210,6 +249,7 @@ public abstract class AbstractClient {
     protected static class ClientRuntimeContext {
         final File storageDir; // selected storage dir
         final URL relayUrl; // current relay url
+        final RelayRoutes routes; // endpoints of current relay
         final boolean allowClipboard, // is clipboard allowed?
                 allowOutgoing,  // if true - we allow outgoing files from this portal
                 useLockFile,
@@ -220,8 +260,12 @@ public abstract class AbstractClient {
         final Map<String, TeleportaCommons.RegisteredPortal> portals = new LinkedHashMap<>();
         final Map<String, String> portalNames = new LinkedHashMap<>();
         KeyPair keyPair; // portal public&private keys
-        final Set<String> processingFiles = new HashSet<>();
-        final Set<String> downloadingFiles = new HashSet<>();
+        volatile TeleportaCommons.SessionKey session; // shared with relay, null in legacy mode
+        volatile long portalsVersion = -1; // last known relay registry version
+        volatile String relayFeatures; // optional features, supported by relay. Could be null
+        // accessed from multiple transfer threads
+        final Set<String> processingFiles = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        final Set<String> downloadingFiles = Collections.newSetFromMap(new ConcurrentHashMap<>());
         ClientRuntimeContext(URL relayUrl, File storageDir,
                              boolean allowClipboard,
                              boolean allowOutgoing,
@@ -230,6 +274,7 @@ public abstract class AbstractClient {
                              String savedKeyPair) {
             this.storageDir = storageDir;
             this.relayUrl = relayUrl;
+            this.routes = new RelayRoutes(relayUrl);
             this.allowClipboard = allowClipboard;
             this.allowOutgoing = allowOutgoing;
             this.useLockFile = useLockFile;
@@ -330,7 +375,8 @@ public abstract class AbstractClient {
         }
         private void tryRenameFile() throws IOException {
             final int p = percent(count,total);
-            if (p== 100 || p % 10 != 0) return;
+            // size is not known, so file is renamed only once
+            if (p== 100 || p % 10 != 0 || (total <= 0 && s != null)) return;
             if (s!=null) s.close();
             final File f2 = new File(f.getParentFile(),
                     String.format("(%d%%) %s", p, origName));
@@ -7,7 +7,6 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -15,15 +14,18 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 import static com.Ox08.teleporta.v3.TeleportaCommons.*;
 import static com.Ox08.teleporta.v3.TeleportaRelay.EXT_FILE;
+import static com.Ox08.teleporta.v3.TeleportaRelay.EXT_UPLOAD;
 
 /**
  * This is embedded client, used when Relay also act as portal
@@ -32,8 +34,10 @@ import static com.Ox08.teleporta.v3.TeleportaRelay.EXT_FILE;
  * @author 0x08
  */
 public class EmbeddedClient extends AbstractClient {
-    // shared executor, used for parallel files download
-    private final ScheduledExecutorService ses = Executors.newScheduledThreadPool(11);
+    // polls and other periodic tasks
+    private final ScheduledExecutorService ses = Executors.newScheduledThreadPool(1);
+    // shared executor, used for parallel files transfer
+    private final ExecutorService es = newWorkers(10);
     private TeleClipboard clip;
     final TeleFilesWatch watch;
     final EmbeddedClientRuntimeContext ctx;
@@ -89,12 +93,19 @@ public class EmbeddedClient extends AbstractClient {
                     .of("teleporta.system.message.portalRegistered", ctx.sessionId));
 
         // register watchers for each portal
-        if (ctx.allowOutgoing && !ctx.relayCtx.portalNames.isEmpty())
-            for (String n : ctx.relayCtx.portalNames.keySet()) {
+        if (ctx.allowOutgoing && !ctx.relayCtx.portals.isEmpty())
+            for (String n : ctx.relayCtx.portals.names()) {
                 final File f = new File(outputDir, n);
                 checkCreateFolder(f);
                 watch.register(f.toPath());
             }
+        // folder to send files to all portals at once
+        if (ctx.allowOutgoing && !broadcastFolder.isEmpty()
+                && ctx.relayCtx.portals.idOf(broadcastFolder) == null) {
+            final File f = new File(outputDir, broadcastFolder);
+            checkCreateFolder(f);
+            watch.register(f.toPath());
+        }
 
         // don't register any watchers, if we're not allow to send anything
         if (ctx.allowOutgoing) {
@@ -102,18 +113,18 @@ public class EmbeddedClient extends AbstractClient {
             watch.registerHandler((files, receiver_name) -> {
                 // pause transfer attempts if there is network error
                 // check if portal exists on client side first
-                if (!ctx.relayCtx.portalNames.containsKey(receiver_name)) {
+                // get remote portals ids
+                final List<String> ids = receiversOf(receiver_name);
+                if (ids == null) {
                     // unknown portal
                     LOG.warning(TeleportaError.messageFor(0x6108, receiver_name));
                     return;
                 }
-                // get remote portal's id
-                final String id = ctx.relayCtx.portalNames.get(receiver_name);
                 try {
                     for (File f : files)
-                        ses.submit(() -> {
+                        es.submit(() -> {
                             try {
-                                sendFile(f, id);
+                                sendFile(f, ids);
                             } catch (IOException e) {
                                 LOG.log(Level.WARNING, e.getMessage(), e);
                             }
@@ -141,7 +152,7 @@ public class EmbeddedClient extends AbstractClient {
 
                     // there could be only few files always, no need for dir streaming
                     for (String file : files)
-                        ses.submit(() -> {
+                        es.submit(() -> {
                             try {
                                 downloadFile(file);
                             } catch (IOException e) {
@@ -167,43 +178,24 @@ public class EmbeddedClient extends AbstractClient {
      *          on i/o errors
      */
     public String[] getPending() throws IOException {
-        // on relay's side
-        final File toFolder = new File(ctx.relayCtx.storageDir, PK.toExternal(ctx.sessionId));
-        final TeleportaRelay.RuntimePortal p = ctx.relayCtx.portals.get(ctx.sessionId);
+        final TeleportaRelay.RuntimePortal p = ctx.relayCtx.portals.get(PK.fromExternal(ctx.sessionId));
         // mark 'last seen online'
         p.lastSeen = System.currentTimeMillis();
 
         // update folder watchers, if we allow outgoing processing
-        if (ctx.allowOutgoing && p.needReloadPortals)
-            reloadPortals();
-
+        final long portalsEpoch = ctx.relayCtx.portals.version();
+        if (p.portalsEpoch != portalsEpoch) {
+            if (ctx.allowOutgoing)
+                reloadPortals();
+            p.portalsEpoch = portalsEpoch;
+        }
         // set updated clipboard data, if required
-        if (p.needLoadClipboard)
+        if (p.clipboardEpoch != ctx.relayCtx.portals.clipboardEpoch())
             downloadClipboard();
 
-        // if there were no files for that portal (could be a new one) - respond current
-        if (!toFolder.exists() || !toFolder.isDirectory())
-            return null;
-
-        final List<String> files = new ArrayList<>();
-        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(toFolder.toPath())) {
-            int fileCounter = 1;
-            for (Path e : dirStream) {
-                if (fileCounter > ctx.relayCtx.limits.maxPendingFilesAtOnce)
-                    break;
-
-                // process only fully uploaded files
-                if (!e.toString().endsWith(EXT_FILE))
-                    continue;
-
-                String name = e.getFileName().toString();
-                name = name.substring(0, name.length() - 4);
-                files.add(name);
-                fileCounter++;
-            }
-        } catch (IOException e) {
-            LOG.log(Level.WARNING, e.getMessage(), e);
-        }
+        // get ready files from relay's index
+        final List<String> files = ctx.relayCtx.pending.list(PK.toExternal(ctx.sessionId),
+                ctx.relayCtx.limits.maxPendingFilesAtOnce);
         // no .dat files, but still settings
         if (files.isEmpty())
             return null;
@@ -232,7 +224,7 @@ public class EmbeddedClient extends AbstractClient {
     public void reloadPortals() {
         final File outputDir = new File(ctx.storageDir,
                 TeleportaMessage.of("teleporta.folder.to"));
-        for (String p : ctx.relayCtx.portalNames.keySet()) {
+        for (String p : ctx.relayCtx.portals.names()) {
             final File f = new File(outputDir, p);
             final Path pp = f.toPath();
             if (!watch.isWatching(pp)) {
@@ -288,14 +280,7 @@ public class EmbeddedClient extends AbstractClient {
             // set uploaded clipboard content as current
             ctx.relayCtx.currentCbFile = cbout;
             // notify all other about clipboard update
-            for (String k : ctx.relayCtx.portals.keySet()) {
-                // ignore self
-                if (k.equals(ctx.sessionId))
-                    continue;
-
-                final TeleportaRelay.RuntimePortal p = ctx.relayCtx.portals.get(k);
-                p.needLoadClipboard = true; // put mark to update clipboard
-            }
+            ctx.relayCtx.portals.notifyClipboard(PK.fromExternal(ctx.sessionId));
         } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             // Error encrypting clipboard data
             throw TeleportaError.withError(0x7214, e);
@@ -315,41 +300,124 @@ public class EmbeddedClient extends AbstractClient {
      *          on I/O errors
      */
     public void sendFile(File file, String receiverId) throws IOException {
-        final TeleportaCommons.RegisteredPortal p = ctx.relayCtx.portals.get(receiverId);
+        sendFile(file, Collections.singletonList(receiverId));
+    }
+    /**
+     * Send file to many remote portals.
+     * File is encrypted and stored once, other portals get references to it.
+     * @param file
+     *          source file
+     * @param receiverIds
+     *          target portals ids
+     * @throws IOException
+     *          on I/O errors
+     */
+    public void sendFile(File file, List<String> receiverIds) throws IOException {
+        // receivers could expire since watcher event
+        final List<String> ids = new ArrayList<>(receiverIds.size());
+        for (String id : receiverIds)
+            if (ctx.relayCtx.portals.contains(id))
+                ids.add(id);
+            else
+                LOG.warning(TeleportaError.messageFor(0x6108, id));
+        if (ids.isEmpty())
+            return;
+        try {
+            if (ids.size() == 1 || allSupport(ids, FEATURE_KEYS))
+                storeFile(file, ids);
+            else
+                // old portals read only single file key: each gets own copy
+                for (String id : ids)
+                    storeFile(file, Collections.singletonList(id));
+        } finally {
+            if (file.isFile() && !file.delete())
+                LOG.warning(TeleportaError.messageFor(0x6106,
+                        file.getAbsolutePath()));
+            else if (file.isDirectory())
+                deleteRecursive(file, true,null);
+        }
+    }
+    /**
+     * Checks if all portals support feature
+     * @param ids
+     *          portals ids
+     * @param feature
+     *          feature to check
+     * @return
+     *      true if all portals support it
+     */
+    private boolean allSupport(List<String> ids, String feature) {
+        for (String id : ids) {
+            final TeleportaRelay.RuntimePortal p = ctx.relayCtx.portals.get(id);
+            if (p == null || !hasFeature(p.features, feature))
+                return false;
+        }
+        return true;
+    }
+    /**
+     * Encrypts file and stores it once for all target portals
+     * @param file
+     *          source file
+     * @param ids
+     *          target portals ids
+     * @throws IOException
+     *          on I/O errors
+     */
+    private void storeFile(File file, List<String> ids) throws IOException {
         // build metadata
         final Properties props = new Properties();
         props.setProperty("name", file.getName());
         props.setProperty("from", ctx.sessionId);
         props.setProperty("type", file.isDirectory() ? "folder" : "file");
         final SecretKey key;
+        // use compact metadata and compression, only if all receivers support it
+        boolean binary = true, deflate = true, gcm = true;
         try {
             key = tc.generateFileKey(); // generate session key (AES)
-            final byte[] foreignPk = fromHex(p.publicKey);
-            final PublicKey pk = tc.restorePublicKey(foreignPk);
-            final byte[] enc = tc.encryptKey(key.getEncoded(), pk);
-            props.setProperty("fileKey", toHex(enc, 0, 0));
+            for (String id : ids) {
+                final TeleportaRelay.RuntimePortal p = ctx.relayCtx.portals.get(id);
+                final PublicKey pk = tc.restorePublicKey(id, p.publicKey);
+                final byte[] enc = tc.encryptKey(key.getEncoded(), pk);
+                // each receiver finds own copy of file key by id
+                props.setProperty(ids.size() == 1 ? "fileKey" :
+                        "fileKey." + PK.toExternal(id), toHex(enc, 0, 0));
+                binary &= hasFeature(p.features, FEATURE_CODEC);
+                deflate &= hasFeature(p.features, FEATURE_DEFLATE);
+                gcm &= hasFeature(p.features, FEATURE_GCM);
+            }
         } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             // Error creating session key
             throw TeleportaError.withError(0x7213, e);
         }
+        final String receiverId = ids.get(0);
         // generate storage folder
         final File toFolder = new File(ctx.relayCtx.storageDir, PK.toExternal(receiverId));
         // try to create it if it's not exist
         checkCreateFolder(toFolder);
         // create temp file on relay side
-        final File out = new File(toFolder, String.format("f_%d%s", generateUniqueID(), EXT_FILE));
+        final String fileId = String.valueOf(generateUniqueID());
+        final File out = new File(toFolder, String.format("f_%s%s", fileId, EXT_UPLOAD));
         try (OutputStream os = Files.newOutputStream(out.toPath());
                 ZipOutputStream zout = new ZipOutputStream(os)) {
             // write magic header
             os.write(TELEPORTED_FILE_HEADER);
-            zout.putNextEntry(new ZipEntry(ENTRY_META));
-            props.store(zout, "");
+            final boolean compress = !file.isDirectory() && compressData
+                    && deflate && isCompressible(file);
+            if (compress)
+                props.setProperty("compression", FEATURE_DEFLATE);
+            final boolean chunked = !file.isDirectory() && gcm;
+            if (chunked)
+                props.setProperty("cipher", FEATURE_GCM);
+            zout.putNextEntry(new ZipEntry(binary ? ENTRY_META_BIN : ENTRY_META));
+            TeleCodec.store(props, zout, binary);
+            // encrypted content is not compressible, so don't waste CPU on it
+            zout.setLevel(Deflater.NO_COMPRESSION);
             zout.putNextEntry(new ZipEntry(ENTRY_DATA));
             if (file.isDirectory())
                 tc.encryptFolder(key,file,zout);
             else
                 try (FileInputStream in = new FileInputStream(file)){
-                    tc.encryptData(key, in, zout);
+                    tc.encryptData(key, tc.generateIv(), in, zout, compress, chunked);
                 }
 
             zout.closeEntry();
@@ -357,15 +425,31 @@ public class EmbeddedClient extends AbstractClient {
             if (LOG.isLoggable(Level.FINE))
                 LOG.fine(TeleportaMessage.of("teleporta.system.message.fileSent",
                         file.getAbsolutePath()));
-
-        } finally {
-            if (file.isFile() && !file.delete())
-                LOG.warning(TeleportaError.messageFor(0x6106,
-                        file.getAbsolutePath()));
-            else if (file.isDirectory())
-                deleteRecursive(file, true,null);
-
         }
+        // publish same way as relay does for uploads
+        TeleportaRelay.completeUpload(ctx.relayCtx, out, fileId, ids);
+    }
+    /**
+     * Get receivers for outgoing folder
+     * @param folder
+     *          outgoing folder name
+     * @return
+     *      target portals ids or null, if there is no such portal
+     */
+    private List<String> receiversOf(String folder) {
+        final String id = ctx.relayCtx.portals.idOf(folder);
+        if (id != null)
+            return Collections.singletonList(id);
+        if (broadcastFolder.isEmpty() || !broadcastFolder.equals(folder))
+            return null;
+        // all portals, except this one
+        final List<String> ids = new ArrayList<>();
+        for (String n : ctx.relayCtx.portals.names()) {
+            final String pid = ctx.relayCtx.portals.idOf(n);
+            if (pid != null && !PK.toExternal(pid).equals(ctx.sessionId))
+                ids.add(pid);
+        }
+        return ids;
     }
     /**
      * This actually copies file with stream decryption from relay's folder to portal
@@ -401,19 +485,23 @@ public class EmbeddedClient extends AbstractClient {
                 // will be read *before* metadata
                 if (props.isEmpty() && ENTRY_META.equalsIgnoreCase(ze.getName()))
                     props.load(zin);
+                else if (props.isEmpty() && ENTRY_META_BIN.equalsIgnoreCase(ze.getName()))
+                    TeleCodec.load(props, zin, true);
                 else if (ENTRY_DATA.equalsIgnoreCase(ze.getName())) {
                     final String from = PK.fromExternal(props.getProperty("from")), // sender id
                             name = props.getProperty("name"), // original file name
                             type = props.getProperty("type"), // content type (file or folder)
-                            fileKey = props.getProperty("fileKey"); // unique file key
+                            // unique file key, could be wrapped for many receivers
+                            fileKey = props.getProperty("fileKey." + ctx.sessionId,
+                                    props.getProperty("fileKey"));
                     // check for source portal
-                    if (!ctx.relayCtx.portals.containsKey(from)) {
+                    // get sender's portal
+                    final TeleportaCommons.RegisteredPortal p = ctx.relayCtx.portals.get(from);
+                    if (p == null) {
                         // Portal not found
                         LOG.warning(TeleportaError.messageFor(0x6108, from));
                         continue;
                     }
-                    // get sender's portal
-                    final TeleportaCommons.RegisteredPortal p = ctx.relayCtx.portals.get(from);
                     // build target folder, based on sender's portal name
                     final File f = Paths.get(ctx.storageDir.getAbsolutePath(),
                             TeleportaMessage.of("teleporta.folder.from"), p.name).toFile();
@@ -437,31 +525,53 @@ public class EmbeddedClient extends AbstractClient {
                     final byte[] decKey = tc.decryptKey(fromHex(fileKey),
                             ctx.relayCtx.relayPair.getPrivate());
                     final SecretKeySpec rkey = new SecretKeySpec(decKey, "AES");
-                    // check content type
-                    switch (type) {
-                        // if its folder
-                        case "folder": {
-                            final File outz = new File(f, name );
-                            tc.decryptFolder(rkey, zin, outz,rFile.length());
-                            break;
-                        }
-                        // if content is file
-                        case "file": {
-                            // just decrypt to target file
-                            try (FileOutputStream fout = new FileOutputStream(out)) {
-                                tc.decryptData(rkey, zin, fout);
+                    // content could be stored separately, in relay's blob store
+                    final String blob = props.getProperty("blob"),
+                            self = PK.fromExternal(ctx.sessionId);
+                    final File blobFile = blob != null ?
+                            ctx.relayCtx.blobs.open(blob, self, fileId) : null;
+                    if (blob != null && blobFile == null) {
+                        LOG.warning(TeleportaError.messageFor(0x6114, blob));
+                        continue;
+                    }
+                    final InputStream data = blobFile != null ?
+                            Files.newInputStream(blobFile.toPath()) : zin;
+                    try {
+                        // check content type
+                        switch (type) {
+                            // if its folder
+                            case "folder": {
+                                final File outz = new File(f, name );
+                                tc.decryptFolder(rkey, data, outz,
+                                        blobFile != null ? blobFile.length() : rFile.length());
+                                break;
                             }
-                            break;
+                            // if content is file
+                            case "file": {
+                                // just decrypt to target file
+                                try (FileOutputStream fout = new FileOutputStream(out)) {
+                                    tc.decryptData(rkey, data, fout,
+                                            FEATURE_DEFLATE.equals(props.getProperty("compression")),
+                                            FEATURE_GCM.equals(props.getProperty("cipher")));
+                                }
+                                break;
+                            }
+                        }
+                    } finally {
+                        if (blobFile != null) {
+                            data.close();
+                            ctx.relayCtx.blobs.release(blob, self, fileId);
                         }
                     }
                     if (LOG.isLoggable(Level.FINE))
                         LOG.fine(TeleportaMessage.of("teleporta.system.message.fileDownloaded",
-                                out.getAbsolutePath()));
+                                out.getAbsolutePath(), out.length()));
 
                 }
             }
         } finally {
-            if (rFile.delete())
+            ctx.relayCtx.pending.remove(PK.toExternal(ctx.sessionId), fileId);
+            if (!rFile.delete())
                 // cannot delete file
                 LOG.warning(TeleportaError.messageFor(0x6106,
                         rFile.getAbsolutePath()));
@@ -477,9 +587,9 @@ public class EmbeddedClient extends AbstractClient {
         if (LOG.isLoggable(Level.FINE))
             LOG.fine(TeleportaMessage.of("teleporta.system.message.downloadingClipboard"));
 
-        final TeleportaRelay.RuntimePortal p = ctx.relayCtx.portals.get(ctx.sessionId);
+        final TeleportaRelay.RuntimePortal p = ctx.relayCtx.portals.get(PK.fromExternal(ctx.sessionId));
         // put the mark first, to disallow repeats
-        p.needLoadClipboard = false;
+        p.clipboardEpoch = ctx.relayCtx.portals.clipboardEpoch();
         // use shared file, from relay's context
         final File rFile = ctx.relayCtx.currentCbFile;
         if (rFile==null || !rFile.exists() || !rFile.isFile() || !rFile.canRead()) {
@@ -510,12 +620,13 @@ public class EmbeddedClient extends AbstractClient {
      * Register embedded client without networking
      */
     public void register() {
-        final String id = PK.generate();
         // try name from environment
         String portalName = TeleportaClient.buildPortalName();
-        ctx.relayCtx.portals.put(id, new TeleportaRelay.RuntimePortal(portalName,
-                toHex(ctx.relayCtx.relayPair.getPublic().getEncoded(), 0, 0)));
-        ctx.relayCtx.portalNames.put(portalName, id);
+        // embedded portal always wins, so allow key replacement
+        final String id = ctx.relayCtx.portals.register(null, portalName,
+                toHex(ctx.relayCtx.relayPair.getPublic().getEncoded(), 0, 0),
+                String.join(",", FEATURE_CODEC, FEATURE_DEFLATE, FEATURE_CAS, FEATURE_GCM,
+                        FEATURE_KEYS), true);
         ctx.sessionId = PK.toExternal(id); // mimic real client
         if (LOG.isLoggable(Level.FINE))
             LOG.fine(TeleportaMessage
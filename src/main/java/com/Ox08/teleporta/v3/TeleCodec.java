@@ -0,0 +1,148 @@
+package com.Ox08.teleporta.v3;
+import com.Ox08.teleporta.v3.messages.TeleportaError;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Compact binary encoding for Teleporta messages.
+ * Used instead of java.util.Properties text format, if both sides support it.
+ *
+ * Format: version byte, number of entries, then for each entry - key and value.
+ * Numbers and string lengths are unsigned varints, strings are in UTF-8.
+ *
+ * @author 0x08
+ * @since 3.1.6
+ */
+public class TeleCodec {
+    // supported codec version
+    public static final int VERSION = 1;
+    // header used to negotiate codec: portal sends supported version, relay responds used one
+    public static final String HEADER = "X-Teleporta-Codec";
+    // upper limit for single string, to avoid huge allocations on broken input
+    private static final int MAX_STRING_LEN = 1024 * 1024;
+
+    private TeleCodec() {
+    }
+    /**
+     * Checks if provided header value contains supported codec version
+     * @param header
+     *          header value, could be null
+     * @return
+     *      true if binary codec could be used
+     */
+    public static boolean isSupported(String header) {
+        return header != null && header.trim().equals(String.valueOf(VERSION));
+    }
+    /**
+     * Writes properties in binary form
+     * @param props
+     *          source properties
+     * @param out
+     *          target stream, will not be closed
+     * @throws IOException
+     *          on i/o errors
+     */
+    public static void write(Properties props, OutputStream out) throws IOException {
+        out.write(VERSION);
+        // count only entries, which are actually written: defaults are included, non-string ones are not
+        final Set<String> names = props.stringPropertyNames();
+        writeVarInt(names.size(), out);
+        for (String k : names) {
+            writeString(k, out);
+            writeString(props.getProperty(k), out);
+        }
+        out.flush();
+    }
+    /**
+     * Reads properties, stored in binary form
+     * @param in
+     *          source stream, will not be closed
+     * @return
+     *      loaded properties
+     * @throws IOException
+     *          on i/o errors or malformed data
+     */
+    public static Properties read(InputStream in) throws IOException {
+        final int v = in.read();
+        if (v != VERSION)
+            throw TeleportaError.withError(0x7276, v);
+        final Properties props = new Properties();
+        for (int i = 0, count = readVarInt(in); i < count; i++) {
+            final String k = readString(in);
+            props.setProperty(k, readString(in));
+        }
+        return props;
+    }
+    /**
+     * Stores properties in selected format
+     * @param props
+     *          source properties
+     * @param out
+     *          target stream
+     * @param binary
+     *          if true - binary codec is used, otherwise java.util.Properties format
+     * @throws IOException
+     *          on i/o errors
+     */
+    public static void store(Properties props, OutputStream out, boolean binary) throws IOException {
+        if (binary)
+            write(props, out);
+        else
+            props.store(out, "");
+    }
+    /**
+     * Loads properties in selected format
+     * @param props
+     *          target properties
+     * @param in
+     *          source stream
+     * @param binary
+     *          if true - binary codec is used, otherwise java.util.Properties format
+     * @throws IOException
+     *          on i/o errors
+     */
+    public static void load(Properties props, InputStream in, boolean binary) throws IOException {
+        if (binary)
+            props.putAll(read(in));
+        else
+            props.load(in);
+    }
+    private static void writeString(String s, OutputStream out) throws IOException {
+        final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(b.length, out);
+        out.write(b);
+    }
+    private static String readString(InputStream in) throws IOException {
+        final int len = readVarInt(in);
+        if (len < 0 || len > MAX_STRING_LEN)
+            throw TeleportaError.withError(0x7277);
+        final byte[] b = new byte[len];
+        for (int off = 0, n; off < len; off += n)
+            if ((n = in.read(b, off, len - off)) < 0)
+                throw TeleportaError.withError(0x7277);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+    private static void writeVarInt(int v, OutputStream out) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+    private static int readVarInt(InputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.read();
+            // 5th byte could carry only 4 remaining bits of int
+            if (b < 0 || (shift == 28 && b > 0x0F))
+                throw TeleportaError.withError(0x7277);
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw TeleportaError.withError(0x7277);
+    }
+}
@@ -3,9 +3,11 @@ import com.Ox08.teleporta.v3.errors.TeleportationException;
 import com.Ox08.teleporta.v3.messages.TeleportaError;
 
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.*;
@@ -13,9 +15,25 @@ import java.security.spec.EncodedKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -32,7 +50,29 @@ public class TeleCrypt {
     public static final int SESSION_KEY_LEN = 256,IV_LEN = 16;
 
     public static final String SESSION_CYPHER= "AES/CBC/PKCS5Padding",
+            CHUNKED_CYPHER = "AES/GCM/NoPadding",
             PK_CYPHER = "RSA";
+    // chunked format: nonce length, authentication tag length and size of plain data in chunk
+    public static final int NONCE_LEN = 12, TAG_LEN = 16, CHUNK_SIZE = 1024 * 1024;
+    // chunks of usual streams are authenticated without additional data
+    private static final byte[] NO_AAD = new byte[0];
+    // upper limit for encrypted chunk, to avoid huge allocations on broken input
+    private static final int MAX_CHUNK_LEN = 64 * 1024 * 1024;
+    // size of buffers, used by cipher streams
+    public static final int BUFFER_SIZE = 1024 *
+            Integer.parseInt(System.getProperty("cryptBuffer", "32"));
+    // number of chunks, processed at once. Limits memory used by parallel encryption
+    private static final int CHUNKS_WINDOW = Math.max(2, ForkJoinPool.getCommonPoolParallelism() * 2);
+    // max number of parsed public keys, kept in cache
+    private static final int KEYS_CACHE = Integer.parseInt(System.getProperty("keysCache", "1024"));
+    // parsed public keys of portals, by portal id. Shared by all instances
+    private static final Map<String, CachedKey> PUBLIC_KEYS = Collections.synchronizedMap(
+            new LinkedHashMap<String, CachedKey>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest) {
+                    return size() > KEYS_CACHE;
+                }
+            });
     /**
      * Decrypt session AES key with RSA private key
      * @param data
@@ -43,12 +83,12 @@ public class TeleCrypt {
      *      decrypted data
      */
     public byte[] decryptKey(byte[] data, Key privateKey) {
-        try {
+        try (CryptoContext cc = CryptoContext.acquire()) {
             /*
              * note: Cipher instances are *not* thread-safe and both decrypt and encrypt
-             * actions could start in same time
+             * actions could start in same time, so each operation takes own context
              */
-            final Cipher encryptCipher = Cipher.getInstance(PK_CYPHER);
+            final Cipher encryptCipher = cc.cipher(PK_CYPHER);
             encryptCipher.init(Cipher.DECRYPT_MODE, privateKey);
             return encryptCipher.doFinal(data);
         } catch (InvalidKeyException | NoSuchAlgorithmException 
@@ -68,8 +108,8 @@ public class TeleCrypt {
      *      encrypted key
      */
     public byte[] encryptKey(byte[] data, Key publicKey) {
-        try {
-            final Cipher encryptCipher = Cipher.getInstance(PK_CYPHER);
+        try (CryptoContext cc = CryptoContext.acquire()) {
+            final Cipher encryptCipher = cc.cipher(PK_CYPHER);
             encryptCipher.init(Cipher.ENCRYPT_MODE, publicKey);
             return encryptCipher.doFinal(data);
         } catch (InvalidKeyException | NoSuchAlgorithmException 
@@ -102,24 +142,49 @@ public class TeleCrypt {
      */
     public void decryptData(SecretKey key,
                             InputStream inputStream, OutputStream outputStream) {
-        try {
+        decryptData(key, inputStream, outputStream, false);
+    }
+    /**
+     * Decrypts data, optionally compressed before encryption
+     * @param key
+     *          AES key
+     * @param inputStream
+     *          source stream
+     * @param outputStream
+     *          target stream
+     * @param compressed
+     *          if true - decrypted data will be inflated
+     */
+    public void decryptData(SecretKey key,
+                            InputStream inputStream, OutputStream outputStream,
+                            boolean compressed) {
+        decryptData(key, null, inputStream, outputStream, compressed);
+    }
+    private void decryptData(SecretKey key, byte[] expectedIv,
+                             InputStream inputStream, OutputStream outputStream,
+                             boolean compressed) {
+        final Inflater inflater = compressed ? new Inflater() : null;
+        try (CryptoContext cc = CryptoContext.acquire()) {
             final byte[] fileIv = new byte[IV_LEN];
             // read stored IV
-            if (inputStream.read(fileIv)!=IV_LEN)
-                // incorrect IV size
+            if (inputStream.read(fileIv)!=IV_LEN
+                    || expectedIv != null && !Arrays.equals(fileIv, expectedIv))
+                // incorrect IV size or IV of another segment
                 throw TeleportaError.withError(0x7012);
 
-            final Cipher cipher = Cipher.getInstance(SESSION_CYPHER);
+            final Cipher cipher = cc.cipher(SESSION_CYPHER);
             cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(fileIv));
-            final byte[] buffer = new byte[4096];
+            final byte[] buffer = new byte[BUFFER_SIZE];
             final TeleportaCommons.CountingZipInputStream cz =
                     inputStream instanceof TeleportaCommons.CountingZipInputStream
                     ? (TeleportaCommons.CountingZipInputStream) inputStream :null;
             int bytesRead;
             // don't wrap in try-catch - don't close it there!
-            final CipherInputStream cipherIn = new CipherInputStream(inputStream, cipher);
+            final BufferedCipherInputStream cipherIn = new BufferedCipherInputStream(inputStream, cipher);
+            final InputStream dataIn = compressed ?
+                    new InflaterInputStream(cipherIn, inflater, buffer.length) : cipherIn;
             int pp =0;
-            while ((bytesRead = cipherIn.read(buffer)) != -1) {
+            while ((bytesRead = dataIn.read(buffer)) != -1) {
                     outputStream.write(buffer, 0, bytesRead);
                     if (LOG.isLoggable(Level.FINE) && cz!=null) {
                       final int p = cz.getPercent();
@@ -134,23 +199,26 @@ public class TeleCrypt {
                 | InvalidKeyException | NoSuchAlgorithmException 
                 | NoSuchPaddingException e) {
             throw TeleportaError.withError(0x7008,e);
+        } finally {
+            if (inflater != null)
+                inflater.end();
         }
     }
 
 
     public void decryptFolder(SecretKey key,
                             InputStream inputStream, File zipFolder, long fsize) {
-        try {
+        try (CryptoContext cc = CryptoContext.acquire()) {
             final byte[] fileIv = new byte[IV_LEN];
             // read stored IV
             if (inputStream.read(fileIv)!=IV_LEN)
                 // incorrect IV size
                 throw TeleportaError.withError(0x7012);
 
-            final Cipher cipher = Cipher.getInstance(SESSION_CYPHER);
+            final Cipher cipher = cc.cipher(SESSION_CYPHER);
             cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(fileIv));
             // don't wrap in try-catch - don't close it there!
-            final CipherInputStream cipherIn = new CipherInputStream(inputStream, cipher);
+            final BufferedCipherInputStream cipherIn = new BufferedCipherInputStream(inputStream, cipher);
             final TeleportaCommons.CountingZipInputStream zipIn = new TeleportaCommons.CountingZipInputStream(null,fsize,cipherIn);
             final String origName = zipFolder.getName();
             for (ZipEntry ze; (ze = zipIn.getNextEntry()) != null; ) {
@@ -192,9 +260,46 @@ public class TeleCrypt {
      */
     public void encryptData(SecretKey key,
                             InputStream inputStream, OutputStream outputStream) {
-        try {
-            final Cipher cipher = Cipher.getInstance(SESSION_CYPHER);
-            cipher.init(Cipher.ENCRYPT_MODE, key, generateIv());
+        encryptData(key, inputStream, outputStream, false);
+    }
+    /**
+     * Encrypt data, optionally compressing it first.
+     * Compression must be done before encryption, because ciphertext is not compressible.
+     * @param key
+     *          session key (AES)
+     * @param inputStream
+     *          source stream
+     * @param outputStream
+     *          target stream
+     * @param compress
+     *          if true - data will be deflated before encryption
+     */
+    public void encryptData(SecretKey key,
+                            InputStream inputStream, OutputStream outputStream,
+                            boolean compress) {
+        encryptData(key, generateIv(), inputStream, outputStream, compress);
+    }
+    /**
+     * Encrypt data with provided IV, optionally compressing it first.
+     * @param key
+     *          session key (AES)
+     * @param iv
+     *          initialization vector
+     * @param inputStream
+     *          source stream
+     * @param outputStream
+     *          target stream
+     * @param compress
+     *          if true - data will be deflated before encryption
+     */
+    public void encryptData(SecretKey key, IvParameterSpec iv,
+                            InputStream inputStream, OutputStream outputStream,
+                            boolean compress) {
+        // fastest level: we're trading CPU for network here
+        final Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        try (CryptoContext cc = CryptoContext.acquire()) {
+            final Cipher cipher = cc.cipher(SESSION_CYPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, key, iv);
             // note: required custom implementation to avoid closing of parent stream
             final NonclosableCipherOutputStream cipherOut
                     = new NonclosableCipherOutputStream(outputStream, cipher);
@@ -203,14 +308,16 @@ public class TeleCrypt {
                     ? (TeleportaCommons.CountingZipOutputStream) outputStream :null;
 
             // store IV directly in file as first 16 bytes
-            final byte[] iv = cipher.getIV();
-            outputStream.write(iv);
-            final byte[] buffer = new byte[4096];
+            outputStream.write(cipher.getIV());
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            // don't close - this will close parent stream
+            final DeflaterOutputStream deflaterOut = compress ?
+                    new DeflaterOutputStream(cipherOut, deflater, buffer.length) : null;
+            final OutputStream dataOut = compress ? deflaterOut : cipherOut;
             int bytesRead;
             int pp =0;
             while ((bytesRead = inputStream.read(buffer)) != -1) {
-                cipherOut.write(buffer, 0, bytesRead);
-                cipherOut.flush();
+                dataOut.write(buffer, 0, bytesRead);
                 if (LOG.isLoggable(Level.FINE) && cz!=null) {
                     final int p = cz.getPercent();
                     if (p % 10 == 0 && p != pp) {
@@ -219,15 +326,252 @@ public class TeleCrypt {
                     }
                 }
             }
+            if (deflaterOut != null)
+                deflaterOut.finish();
             cipherOut.doFinal();
         } catch (IOException | InvalidAlgorithmParameterException 
                 | InvalidKeyException | NoSuchAlgorithmException 
                 | NoSuchPaddingException e) {
             throw TeleportaError.withError(0x7007,e);
+        } finally {
+            if (deflater != null)
+                deflater.end();
         }
     }
 
 
+    /**
+     * Encrypt data with selected format
+     * @param key
+     *          session key (AES)
+     * @param iv
+     *          initialization vector, for chunked format its first bytes are used as nonce
+     * @param inputStream
+     *          source stream
+     * @param outputStream
+     *          target stream
+     * @param compress
+     *          if true - data will be deflated before encryption
+     * @param chunked
+     *          if true - chunked AES-GCM format is used, otherwise AES-CBC
+     */
+    public void encryptData(SecretKey key, IvParameterSpec iv,
+                            InputStream inputStream, OutputStream outputStream,
+                            boolean compress, boolean chunked) {
+        if (chunked)
+            encryptChunked(key, iv, inputStream, outputStream, compress);
+        else
+            encryptData(key, iv, inputStream, outputStream, compress);
+    }
+    /**
+     * Encrypts same content again, with key and IV already used for it: derived from
+     * content (see {@link #deriveContentKey}) or kept to resume upload of unchanged file.
+     * Same plaintext gives same ciphertext, so nothing new is revealed and
+     * reuse check of GCM cipher is skipped only there.
+     * Caller must be sure that content is not changed.
+     * @param key
+     *          key, used for this content
+     * @param iv
+     *          initialization vector, used for this content
+     * @param inputStream
+     *          source stream
+     * @param outputStream
+     *          target stream
+     * @param compress
+     *          if true - data will be deflated before encryption
+     * @param chunked
+     *          if true - chunked AES-GCM format is used, otherwise AES-CBC
+     */
+    public void encryptContent(SecretKey key, IvParameterSpec iv,
+                               InputStream inputStream, OutputStream outputStream,
+                               boolean compress, boolean chunked) {
+        if (chunked)
+            encryptChunked(key, iv, NO_AAD, inputStream, outputStream, compress, true);
+        else
+            encryptData(key, iv, inputStream, outputStream, compress);
+    }
+    /**
+     * Decrypts data with selected format
+     * @param key
+     *          AES key
+     * @param inputStream
+     *          source stream
+     * @param outputStream
+     *          target stream
+     * @param compressed
+     *          if true - decrypted data will be inflated
+     * @param chunked
+     *          if true - chunked AES-GCM format is used, otherwise AES-CBC
+     */
+    public void decryptData(SecretKey key,
+                            InputStream inputStream, OutputStream outputStream,
+                            boolean compressed, boolean chunked) {
+        if (chunked)
+            decryptChunked(key, inputStream, outputStream, compressed);
+        else
+            decryptData(key, inputStream, outputStream, compressed);
+    }
+    /**
+     * Encrypt data with AES-GCM, by chunks.
+     * Chunks are encrypted in parallel and each one is authenticated separately.
+     * @param key
+     *          session key (AES)
+     * @param iv
+     *          initialization vector, first bytes are used as nonce
+     * @param inputStream
+     *          source stream
+     * @param outputStream
+     *          target stream
+     * @param compress
+     *          if true - data will be deflated before encryption
+     */
+    public void encryptChunked(SecretKey key, IvParameterSpec iv,
+                               InputStream inputStream, OutputStream outputStream,
+                               boolean compress) {
+        encryptChunked(key, iv, NO_AAD, inputStream, outputStream, compress, false);
+    }
+    private void encryptChunked(SecretKey key, IvParameterSpec iv, byte[] aad,
+                                InputStream inputStream, OutputStream outputStream,
+                                boolean compress, boolean repeat) {
+        final Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        try {
+            final ChunkedCipherOutputStream cipherOut = new ChunkedCipherOutputStream(key,
+                    Arrays.copyOf(iv.getIV(), NONCE_LEN), aad, repeat, outputStream);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            // don't close - this will close parent stream
+            final DeflaterOutputStream deflaterOut = compress ?
+                    new DeflaterOutputStream(cipherOut, deflater, buffer.length) : null;
+            final OutputStream dataOut = compress ? deflaterOut : cipherOut;
+            for (int n; (n = inputStream.read(buffer)) != -1; )
+                dataOut.write(buffer, 0, n);
+            if (deflaterOut != null)
+                deflaterOut.finish();
+            cipherOut.finish();
+        } catch (IOException e) {
+            throw TeleportaError.withError(0x7007, e);
+        } finally {
+            if (deflater != null)
+                deflater.end();
+        }
+    }
+    /**
+     * Decrypts data, encrypted with AES-GCM by chunks.
+     * Chunks are decrypted and verified in parallel.
+     * @param key
+     *          AES key
+     * @param inputStream
+     *          source stream, is read exactly till the end of encrypted data
+     * @param outputStream
+     *          target stream
+     * @param compressed
+     *          if true - decrypted data will be inflated
+     */
+    public void decryptChunked(SecretKey key,
+                               InputStream inputStream, OutputStream outputStream,
+                               boolean compressed) {
+        decryptChunked(key, null, NO_AAD, inputStream, outputStream, compressed);
+    }
+    private void decryptChunked(SecretKey key, byte[] expectedNonce, byte[] aad,
+                                InputStream inputStream, OutputStream outputStream,
+                                boolean compressed) {
+        final Inflater inflater = compressed ? new Inflater() : null;
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            // don't close - this will close parent stream
+            final ChunkedCipherInputStream cipherIn = new ChunkedCipherInputStream(key,
+                    expectedNonce, aad, inputStream);
+            final InputStream dataIn = compressed ?
+                    new InflaterInputStream(cipherIn, inflater, buffer.length) : cipherIn;
+            for (int n; (n = dataIn.read(buffer)) != -1; )
+                outputStream.write(buffer, 0, n);
+        } catch (IOException e) {
+            throw TeleportaError.withError(0x7008, e);
+        } finally {
+            if (inflater != null)
+                inflater.end();
+        }
+    }
+    /**
+     * Encrypts segment of file. Segment is bound to its position:
+     * IV is derived from file IV and segment number, for AES-GCM segment number and
+     * number of segments are also authenticated, so segments could not be
+     * reordered, repeated or dropped.
+     * @param key
+     *          file key (AES)
+     * @param fileIv
+     *          file initialization vector
+     * @param seg
+     *          segment number
+     * @param segments
+     *          total number of segments
+     * @param inputStream
+     *          segment content
+     * @param outputStream
+     *          target stream
+     * @param compress
+     *          if true - data will be deflated before encryption
+     * @param chunked
+     *          if true - chunked AES-GCM format is used, otherwise AES-CBC
+     */
+    public void encryptSegment(SecretKey key, IvParameterSpec fileIv, int seg, int segments,
+                               InputStream inputStream, OutputStream outputStream,
+                               boolean compress, boolean chunked) {
+        final IvParameterSpec iv = new IvParameterSpec(segmentIv(fileIv.getIV(), seg));
+        if (chunked)
+            encryptChunked(key, iv, segmentAad(seg, segments), inputStream, outputStream,
+                    compress, false);
+        else
+            encryptData(key, iv, inputStream, outputStream, compress);
+    }
+    /**
+     * Decrypts segment of file, encrypted by {@link #encryptSegment}.
+     * Segment, encrypted for other position, is rejected
+     * @param key
+     *          file key (AES)
+     * @param fileIv
+     *          file initialization vector
+     * @param seg
+     *          segment number
+     * @param segments
+     *          total number of segments
+     * @param inputStream
+     *          source stream
+     * @param outputStream
+     *          target stream
+     * @param compressed
+     *          if true - decrypted data will be inflated
+     * @param chunked
+     *          if true - chunked AES-GCM format is used, otherwise AES-CBC
+     */
+    public void decryptSegment(SecretKey key, IvParameterSpec fileIv, int seg, int segments,
+                               InputStream inputStream, OutputStream outputStream,
+                               boolean compressed, boolean chunked) {
+        final byte[] iv = segmentIv(fileIv.getIV(), seg);
+        if (chunked)
+            decryptChunked(key, Arrays.copyOf(iv, NONCE_LEN), segmentAad(seg, segments),
+                    inputStream, outputStream, compressed);
+        else
+            decryptData(key, iv, inputStream, outputStream, compressed);
+    }
+    /**
+     * Builds IV of segment: file IV, with segment number xor-ed into first bytes.
+     * Chunk number is xor-ed into last bytes of nonce (see {@link #chunkParams}),
+     * so each chunk of each segment has unique nonce
+     */
+    private static byte[] segmentIv(byte[] fileIv, int seg) {
+        final byte[] iv = fileIv.clone();
+        for (int i = 0; i < 4; i++)
+            iv[i] ^= (byte) (seg >>> (8 * (3 - i)));
+        return iv;
+    }
+    /**
+     * Additional authenticated data of segment: its number and total number of segments
+     */
+    private static byte[] segmentAad(int seg, int segments) {
+        return new byte[]{(byte) (seg >>> 24), (byte) (seg >>> 16), (byte) (seg >>> 8), (byte) seg,
+                (byte) (segments >>> 24), (byte) (segments >>> 16), (byte) (segments >>> 8),
+                (byte) segments};
+    }
     /**
      * Encrypt & send folder to output stream
      * @param key
@@ -236,8 +580,8 @@ public class TeleCrypt {
      */
     public void encryptFolder(SecretKey key,
                             File folder, OutputStream outputStream) {
-        try {
-            final Cipher cipher = Cipher.getInstance(SESSION_CYPHER);
+        try (CryptoContext cc = CryptoContext.acquire()) {
+            final Cipher cipher = cc.cipher(SESSION_CYPHER);
             cipher.init(Cipher.ENCRYPT_MODE, key, generateIv());
             // note: required custom implementation to avoid closing of parent stream
             final NonclosableCipherOutputStream cipherOut
@@ -295,15 +639,16 @@ public class TeleCrypt {
      */
     public void rencryptData(SecretKey key, SecretKey key2,
                              InputStream inputStream, OutputStream outputStream) {
-        try {
+        try (CryptoContext cc = CryptoContext.acquire()) {
             final byte[] fileIv = new byte[IV_LEN];
             // read stored IV
             if (inputStream.read(fileIv)!=IV_LEN)
                 // incorrect IV size
                 throw TeleportaError.withError(0x7012);
 
-            final Cipher cipher = Cipher.getInstance(SESSION_CYPHER);
+            final Cipher cipher = cc.cipher(SESSION_CYPHER);
             cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(fileIv));
+            // used in same time with first one, so could not be taken from context
             final Cipher cipher2 = Cipher.getInstance(SESSION_CYPHER);
             cipher2.init(Cipher.ENCRYPT_MODE, key2, generateIv());
             final NonclosableCipherOutputStream cipherOut
@@ -311,10 +656,10 @@ public class TeleCrypt {
             // store IV directly in file as first 16 bytes
             final byte[] iv = cipher2.getIV();
             outputStream.write(iv);
-            final byte[] buffer = new byte[4096];
+            final byte[] buffer = new byte[BUFFER_SIZE];
             int bytesRead;
             // don't wrap in try-catch - don't close it there!
-            final CipherInputStream cipherIn = new CipherInputStream(inputStream, cipher);
+            final BufferedCipherInputStream cipherIn = new BufferedCipherInputStream(inputStream, cipher);
             while ((bytesRead = cipherIn.read(buffer)) != -1)
                 cipherOut.write(buffer, 0, bytesRead);
 
@@ -336,13 +681,44 @@ public class TeleCrypt {
      */
     public PublicKey restorePublicKey(byte[] data)
             throws NoSuchAlgorithmException, InvalidKeySpecException {
-        final KeyFactory kf = KeyFactory.getInstance(PK_CYPHER);
-        return kf.generatePublic(new X509EncodedKeySpec(data));
+        try (CryptoContext cc = CryptoContext.acquire()) {
+            return cc.keyFactory().generatePublic(new X509EncodedKeySpec(data));
+        }
     }
     public PrivateKey restorePrivateKey(byte[] data)
             throws NoSuchAlgorithmException, InvalidKeySpecException {
-            final KeyFactory kf = KeyFactory.getInstance(PK_CYPHER);
-            return kf.generatePrivate(new PKCS8EncodedKeySpec(data));
+        try (CryptoContext cc = CryptoContext.acquire()) {
+            return cc.keyFactory().generatePrivate(new PKCS8EncodedKeySpec(data));
+        }
+    }
+    /**
+     * Restores public key of portal, using cache.
+     * Key is parsed again, if portal's key was changed.
+     * @param portalId
+     *          portal id, used as cache key
+     * @param hexKey
+     *          public key, in hex
+     * @return
+     *      RSA public key
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeySpecException
+     */
+    public PublicKey restorePublicKey(String portalId, String hexKey)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        final CachedKey c = PUBLIC_KEYS.get(portalId);
+        if (c != null && c.hexKey.equals(hexKey))
+            return c.key;
+        final PublicKey pk = restorePublicKey(TeleportaCommons.fromHex(hexKey));
+        PUBLIC_KEYS.put(portalId, new CachedKey(hexKey, pk));
+        return pk;
+    }
+    /**
+     * Drops cached public key of portal. Called when portal's key is changed or portal is removed
+     * @param portalId
+     *          portal id
+     */
+    public static void forgetPublicKey(String portalId) {
+        PUBLIC_KEYS.remove(portalId);
     }
 
     /**
@@ -351,9 +727,61 @@ public class TeleCrypt {
      * @throws NoSuchAlgorithmException
      */
     public SecretKey generateFileKey() throws NoSuchAlgorithmException {
-        final KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
-        keyGenerator.init(128);
-        return keyGenerator.generateKey();
+        try (CryptoContext cc = CryptoContext.acquire()) {
+            return cc.keyGenerator().generateKey();
+        }
+    }
+    /**
+     * Calculates SHA-256 hash of stream content
+     * @param in
+     *          source stream, will not be closed
+     * @return
+     *      hash
+     */
+    public byte[] digest(InputStream in) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            for (int n; (n = in.read(buffer)) != -1; )
+                md.update(buffer, 0, n);
+            return md.digest();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw TeleportaError.withError(0x7007, e);
+        }
+    }
+    /**
+     * Derives AES key from content hash (convergent encryption).
+     * Same content always gives same encrypted data, which allows relay to
+     * deduplicate it without access to content.
+     * Note: anyone who has the content could check if it was sent.
+     * @param contentHash
+     *          SHA-256 hash of content
+     * @return
+     *      AES key
+     */
+    public SecretKey deriveContentKey(byte[] contentHash) {
+        return new SecretKeySpec(deriveFromHash("key", contentHash), "AES");
+    }
+    /**
+     * Derives initialization vector from content hash
+     * @param contentHash
+     *          SHA-256 hash of content
+     * @return
+     *      IV
+     */
+    public IvParameterSpec deriveContentIv(byte[] contentHash) {
+        return new IvParameterSpec(deriveFromHash("iv", contentHash));
+    }
+    private static byte[] deriveFromHash(String label, byte[] contentHash) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(("teleporta-content-" + label).getBytes(StandardCharsets.UTF_8));
+            md.update(contentHash);
+            // 128 bit, same as generated file keys
+            return Arrays.copyOf(md.digest(), IV_LEN);
+        } catch (NoSuchAlgorithmException e) {
+            throw TeleportaError.withError(0x7007, e);
+        }
     }
     /**
      * Generates intialization vector
@@ -363,18 +791,328 @@ public class TeleCrypt {
      */
     public IvParameterSpec generateIv() {
         final byte[] iv = new byte[IV_LEN];
-        new SecureRandom().nextBytes(iv);
+        try (CryptoContext cc = CryptoContext.acquire()) {
+            cc.random.nextBytes(iv);
+        }
         return new IvParameterSpec(iv);
     }
 
     /**
-     * Taken from javax.crypto.CipherOutputStream with removed close() logic
+     * Builds nonce for chunk: base nonce, xor-ed with chunk number.
+     * So chunks could not be reordered or replaced by chunks from other position.
+     */
+    private static GCMParameterSpec chunkParams(byte[] nonce, long index) {
+        final byte[] n = nonce.clone();
+        for (int i = 0; i < 8; i++)
+            n[NONCE_LEN - 1 - i] ^= (byte) (index >>> (8 * i));
+        return new GCMParameterSpec(TAG_LEN * 8, n);
+    }
+    /**
+     * Encrypts single chunk into its record: length (highest bit marks last chunk)
+     * and encrypted data with tag
+     * @param repeat
+     *          true if same content is encrypted again, so key and nonce could be used again
+     * @return
+     *      record length
+     */
+    private static int sealChunk(SecretKey key, byte[] nonce, byte[] aad, long index, boolean last,
+                                 boolean repeat, Chunk c) throws GeneralSecurityException {
+        final int len;
+        try (CryptoContext cc = CryptoContext.acquire()) {
+            Cipher cipher = cc.cipher(CHUNKED_CYPHER);
+            final GCMParameterSpec params = chunkParams(nonce, index);
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, params);
+            } catch (InvalidAlgorithmParameterException e) {
+                // GCM instance refuses same key and nonce twice in a row. Instances are pooled,
+                // so this depends on which one the chunk gets. Allowed only when same content
+                // is encrypted again, so just take new instance
+                if (!repeat)
+                    throw e;
+                cipher = cc.renew(CHUNKED_CYPHER);
+                cipher.init(Cipher.ENCRYPT_MODE, key, params);
+            }
+            // 'last' mark is authenticated, so stream could not be truncated at chunk boundary
+            cipher.updateAAD(new byte[]{(byte) (last ? 1 : 0)});
+            if (aad.length > 0)
+                cipher.updateAAD(aad);
+            len = cipher.doFinal(c.plain, 0, c.plainLen, c.sealed, 4);
+        }
+        final int n = len | (last ? 0x80000000 : 0);
+        c.sealed[0] = (byte) (n >>> 24);
+        c.sealed[1] = (byte) (n >>> 16);
+        c.sealed[2] = (byte) (n >>> 8);
+        c.sealed[3] = (byte) n;
+        return len + 4;
+    }
+    /**
+     * Decrypts and verifies single chunk
+     * @return
+     *      plain data length
+     */
+    private static int openChunk(SecretKey key, byte[] nonce, byte[] aad, long index, boolean last,
+                                 Chunk c) throws GeneralSecurityException {
+        try (CryptoContext cc = CryptoContext.acquire()) {
+            final Cipher cipher = cc.cipher(CHUNKED_CYPHER);
+            cipher.init(Cipher.DECRYPT_MODE, key, chunkParams(nonce, index));
+            cipher.updateAAD(new byte[]{(byte) (last ? 1 : 0)});
+            if (aad.length > 0)
+                cipher.updateAAD(aad);
+            return cipher.doFinal(c.sealed, 0, c.sealedLen, c.plain, 0);
+        }
+    }
+    /**
+     * Cryptographic instances, used by single operation at once.
+     * Lookup of providers is slow, but instances are not thread-safe, so contexts are
+     * taken from shared pool and returned on close. Pool is not bound to threads,
+     * because virtual threads are not reused and thread-local context would be created for each task.
+     * Ciphers are always initialized again before use, so no state is shared between operations.
+     */
+    static class CryptoContext implements AutoCloseable {
+        // idle contexts, extra ones are dropped on close
+        private static final BlockingQueue<CryptoContext> IDLE =
+                new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2);
+        private final Map<String, Cipher> ciphers = new HashMap<>();
+        private KeyFactory keyFactory;
+        private KeyGenerator keyGenerator;
+        final SecureRandom random = new SecureRandom();
+        /**
+         * Takes idle context or creates new one. Must be closed after use
+         * @return
+         *      context
+         */
+        static CryptoContext acquire() {
+            final CryptoContext cc = IDLE.poll();
+            return cc != null ? cc : new CryptoContext();
+        }
+        @Override
+        public void close() {
+            IDLE.offer(this);
+        }
+        Cipher cipher(String transformation)
+                throws NoSuchAlgorithmException, NoSuchPaddingException {
+            final Cipher c = ciphers.get(transformation);
+            return c != null ? c : renew(transformation);
+        }
+        Cipher renew(String transformation)
+                throws NoSuchAlgorithmException, NoSuchPaddingException {
+            final Cipher c = Cipher.getInstance(transformation);
+            ciphers.put(transformation, c);
+            return c;
+        }
+        KeyFactory keyFactory() throws NoSuchAlgorithmException {
+            if (keyFactory == null)
+                keyFactory = KeyFactory.getInstance(PK_CYPHER);
+            return keyFactory;
+        }
+        KeyGenerator keyGenerator() throws NoSuchAlgorithmException {
+            if (keyGenerator == null) {
+                keyGenerator = KeyGenerator.getInstance("AES");
+                keyGenerator.init(128, random);
+            }
+            return keyGenerator;
+        }
+    }
+    /**
+     * Parsed public key, with its source
+     */
+    static class CachedKey {
+        final String hexKey;
+        final PublicKey key;
+        CachedKey(String hexKey, PublicKey key) {
+            this.hexKey = hexKey;
+            this.key = key;
+        }
+    }
+    /**
+     * Chunk buffers, reused for all chunks of stream
+     */
+    static class Chunk {
+        byte[] plain, sealed;
+        int plainLen, sealedLen;
+        ForkJoinTask<Integer> task; // encryption or decryption in progress, returns result length
+        Chunk(int plainSize, int sealedSize) {
+            this.plain = new byte[plainSize];
+            this.sealed = new byte[sealedSize];
+        }
+        int join() throws IOException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ?
+                        (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+    }
+    /**
+     * Encrypts data with AES-GCM, by chunks.
+     * Chunks are encrypted in parallel, on common fork-join pool, and written in original order.
+     * Format: nonce, then chunk records: length and encrypted data with tag.
+     * Parent stream is not closed.
+     */
+    static class ChunkedCipherOutputStream extends OutputStream {
+        private final SecretKey key;
+        private final byte[] nonce,
+                aad; // additional data, authenticated with each chunk
+        private final boolean repeat; // same content is encrypted again with same key and nonce
+        private final OutputStream out;
+        private final Deque<Chunk> pending = new ArrayDeque<>(),
+                free = new ArrayDeque<>(); // written chunks, ready for reuse
+        private Chunk current;
+        private long index;
+        ChunkedCipherOutputStream(SecretKey key, byte[] nonce, byte[] aad, boolean repeat,
+                                  OutputStream out) throws IOException {
+            this.key = key;
+            this.nonce = nonce;
+            this.aad = aad;
+            this.repeat = repeat;
+            this.out = out;
+            this.current = take();
+            out.write(nonce);
+        }
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final int n = Math.min(len, CHUNK_SIZE - current.plainLen);
+                System.arraycopy(b, off, current.plain, current.plainLen, n);
+                current.plainLen += n;
+                off += n;
+                len -= n;
+                if (current.plainLen == CHUNK_SIZE)
+                    submit(false);
+            }
+        }
+        /**
+         * Encrypts remaining data as last chunk and writes all pending chunks
+         * @throws IOException
+         *          on i/o or encryption errors
+         */
+        void finish() throws IOException {
+            submit(true);
+            out.flush();
+        }
+        private Chunk take() {
+            final Chunk c = free.poll();
+            return c != null ? c : new Chunk(CHUNK_SIZE, 4 + CHUNK_SIZE + TAG_LEN);
+        }
+        private void submit(boolean last) throws IOException {
+            final Chunk c = current;
+            final long i = index++;
+            c.task = ForkJoinPool.commonPool().submit(() -> sealChunk(key, nonce, aad, i, last, repeat, c));
+            pending.add(c);
+            // wait for oldest chunks, so only few of them are kept in memory
+            while (pending.size() > CHUNKS_WINDOW || last && !pending.isEmpty()) {
+                final Chunk w = pending.poll();
+                out.write(w.sealed, 0, w.join());
+                w.plainLen = 0;
+                free.add(w);
+            }
+            current = last ? null : take();
+        }
+    }
+    /**
+     * Decrypts data, encrypted by chunks with AES-GCM.
+     * Few chunks are read ahead and decrypted in parallel.
+     * Parent stream is read exactly till last chunk and is not closed.
+     */
+    static class ChunkedCipherInputStream extends InputStream {
+        private final SecretKey key;
+        private final byte[] nonce = new byte[NONCE_LEN],
+                aad; // additional data, authenticated with each chunk
+        private final InputStream in;
+        private final Deque<Chunk> pending = new ArrayDeque<>(),
+                free = new ArrayDeque<>(); // consumed chunks, ready for reuse
+        private Chunk current;
+        private int pos;
+        private long index;
+        private boolean lastRead; // true if last chunk was read from parent stream
+        /**
+         * @param expectedNonce
+         *          if not null - stored nonce must be same, otherwise stream is rejected
+         * @param aad
+         *          additional data, authenticated with each chunk
+         */
+        ChunkedCipherInputStream(SecretKey key, byte[] expectedNonce, byte[] aad,
+                                 InputStream in) throws IOException {
+            this.key = key;
+            this.aad = aad;
+            this.in = in;
+            readFully(nonce, nonce.length);
+            if (expectedNonce != null && !Arrays.equals(nonce, expectedNonce))
+                throw TeleportaError.withError(0x7012);
+        }
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (current == null || pos >= current.plainLen)
+                if (!nextChunk())
+                    return -1;
+            final int n = Math.min(len, current.plainLen - pos);
+            System.arraycopy(current.plain, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        private boolean nextChunk() throws IOException {
+            if (current != null)
+                free.add(current);
+            current = null;
+            while (!lastRead && pending.size() < CHUNKS_WINDOW)
+                readChunk();
+            if (pending.isEmpty())
+                return false;
+            current = pending.poll();
+            current.plainLen = current.join();
+            pos = 0;
+            return true;
+        }
+        private void readChunk() throws IOException {
+            final byte[] h = new byte[4];
+            readFully(h, h.length);
+            final int header = (h[0] & 0xFF) << 24 | (h[1] & 0xFF) << 16
+                    | (h[2] & 0xFF) << 8 | (h[3] & 0xFF);
+            final boolean last = header < 0;
+            final int len = header & 0x7FFFFFFF;
+            if (len < TAG_LEN || len > MAX_CHUNK_LEN)
+                throw TeleportaError.withError(0x7283, len);
+            Chunk c = free.poll();
+            // chunk size is selected by sender, so buffers could grow
+            if (c == null || c.sealed.length < len)
+                c = new Chunk(len - TAG_LEN, len);
+            readFully(c.sealed, len);
+            c.sealedLen = len;
+            final long i = index++;
+            final Chunk t = c;
+            c.task = ForkJoinPool.commonPool().submit(() -> openChunk(key, nonce, aad, i, last, t));
+            pending.add(c);
+            lastRead = last;
+        }
+        // stream ends before last chunk, if it was truncated
+        private void readFully(byte[] b, int len) throws IOException {
+            for (int off = 0, n; off < len; off += n)
+                if ((n = in.read(b, off, len - off)) < 0)
+                    throw new EOFException();
+        }
+    }
+    /**
+     * Taken from javax.crypto.CipherOutputStream with removed close() logic.
+     * Output buffer is reused for all writes, so there are no allocations per write.
      */
     public static class NonclosableCipherOutputStream extends FilterOutputStream {
         private final Cipher cipher;
         private final OutputStream output;
         private final byte[] ibuffer = new byte[1];
-        private byte[] obuffer;
+        private byte[] obuffer = new byte[BUFFER_SIZE + IV_LEN];
         private boolean closed;
         public NonclosableCipherOutputStream(OutputStream var1, Cipher var2) {
             super(var1); this.output = var1; this.cipher = var2;
@@ -382,11 +1120,7 @@ public class TeleCrypt {
         @Override
         public void write(int var1) throws IOException {
             this.ibuffer[0] = (byte) var1;
-            this.obuffer = this.cipher.update(this.ibuffer, 0, 1);
-            if (this.obuffer != null) {
-                this.output.write(this.obuffer);
-                this.obuffer = null;
-            }
+            this.write(this.ibuffer, 0, 1);
         }
         @Override
         public void write(byte[] var1) throws IOException {
@@ -394,18 +1128,21 @@ public class TeleCrypt {
         }
         @Override
         public void write(byte[] var1, int var2, int var3) throws IOException {
-            this.obuffer = this.cipher.update(var1, var2, var3);
-            if (this.obuffer != null) {
-                this.output.write(this.obuffer);
-                this.obuffer = null;
+            while (var3 > 0) {
+                final int n = Math.min(var3, BUFFER_SIZE);
+                try {
+                    final int out = this.cipher.update(var1, var2, n, outputBuffer(n), 0);
+                    if (out > 0)
+                        this.output.write(this.obuffer, 0, out);
+                } catch (ShortBufferException e) {
+                    throw new IOException(e);
+                }
+                var2 += n;
+                var3 -= n;
             }
         }
         @Override
         public void flush() throws IOException {
-            if (this.obuffer != null) {
-                this.output.write(this.obuffer);
-                this.obuffer = null;
-            }
             this.output.flush();
         }
         /**
@@ -417,9 +1154,11 @@ public class TeleCrypt {
             if (!this.closed) {
                 this.closed = true;
                 try {
-                    this.obuffer = this.cipher.doFinal();
-                } catch (BadPaddingException | IllegalBlockSizeException var3) {
-                    this.obuffer = null;
+                    final int out = this.cipher.doFinal(outputBuffer(0), 0);
+                    if (out > 0)
+                        this.output.write(this.obuffer, 0, out);
+                } catch (BadPaddingException | IllegalBlockSizeException
+                         | ShortBufferException | IOException ignored) {
                 }
                 try {
                     this.flush();
@@ -429,6 +1168,71 @@ public class TeleCrypt {
                 // this.out.close();
             }
         }
+        private byte[] outputBuffer(int len) {
+            final int size = this.cipher.getOutputSize(len);
+            if (this.obuffer.length < size)
+                this.obuffer = new byte[size];
+            return this.obuffer;
+        }
+    }
+    /**
+     * Decrypting stream, same as javax.crypto.CipherInputStream, but with large buffers,
+     * reused for all reads. Parent stream is not closed.
+     */
+    public static class BufferedCipherInputStream extends InputStream {
+        private final InputStream input;
+        private final Cipher cipher;
+        private final byte[] ibuffer = new byte[BUFFER_SIZE], single = new byte[1];
+        private byte[] obuffer = new byte[BUFFER_SIZE + IV_LEN];
+        private int ostart, ofinish;
+        private boolean done;
+        public BufferedCipherInputStream(InputStream input, Cipher cipher) {
+            this.input = input;
+            this.cipher = cipher;
+        }
+        @Override
+        public int read() throws IOException {
+            return read(this.single, 0, 1) < 0 ? -1 : this.single[0] & 0xFF;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (this.ostart >= this.ofinish) {
+                if (this.done)
+                    return -1;
+                fill();
+            }
+            final int n = Math.min(len, this.ofinish - this.ostart);
+            System.arraycopy(this.obuffer, this.ostart, b, off, n);
+            this.ostart += n;
+            return n;
+        }
+        @Override
+        public int available() {
+            return this.ofinish - this.ostart;
+        }
+        @Override
+        public void close() {
+            // don't close parent stream
+        }
+        private void fill() throws IOException {
+            final int n = this.input.read(this.ibuffer);
+            this.ostart = 0;
+            try {
+                if (n < 0) {
+                    this.done = true;
+                    this.ofinish = this.cipher.doFinal(outputBuffer(0), 0);
+                } else
+                    this.ofinish = this.cipher.update(this.ibuffer, 0, n, outputBuffer(n), 0);
+            } catch (BadPaddingException | IllegalBlockSizeException | ShortBufferException e) {
+                throw new IOException(e);
+            }
+        }
+        private byte[] outputBuffer(int len) {
+            final int size = this.cipher.getOutputSize(len);
+            if (this.obuffer.length < size)
+                this.obuffer = new byte[size];
+            return this.obuffer;
+        }
     }
     // test flow
     public static void main(String[] args) throws Exception {
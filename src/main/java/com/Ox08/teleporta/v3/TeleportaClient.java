@@ -1,31 +1,48 @@
 package com.Ox08.teleporta.v3;
 
+import com.Ox08.teleporta.v3.errors.TeleportationException;
 import com.Ox08.teleporta.v3.messages.TeleportaError;
 import com.Ox08.teleporta.v3.messages.TeleportaMessage;
 import com.Ox08.teleporta.v3.services.TeleClipboard;
 import com.Ox08.teleporta.v3.services.TeleFilesWatch;
 
 import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 
 import static com.Ox08.teleporta.v3.TeleportaCommons.*;
 import static com.Ox08.teleporta.v3.services.TeleFilesWatch.isAcceptable;
@@ -40,13 +57,49 @@ public class TeleportaClient extends AbstractClient{
 
     // shared executor, used for parallel files download
     private static final ScheduledExecutorService ses = Executors.newScheduledThreadPool(1);
-    private static final ExecutorService es = Executors.newFixedThreadPool(10);
-
+    private static final ExecutorService es = newWorkers(10);
+
+    // default interval between polls, in seconds
+    private static final int POLL_INTERVAL = 5;
+    // folder for partially downloaded files, inside portal's home
+    private static final String PARTIAL_FOLDER = ".partial";
+    // max number of delivery confirmations, sent with single poll
+    private static final int MAX_ACKS = 100;
+    // max number of recently confirmed files, which are remembered
+    private static final int MAX_CONFIRMED = 10000;
     private TeleClipboard clip;
     private final ClientRuntimeContext ctx;
-    private boolean pollRunning,  // if poll enabled and running
+    private volatile boolean pollRunning,  // if poll enabled and running
             networkError, // if network error raised
-            requireResend;
+            requireResend,
+            relayWaits; // if true - relay supports long-poll, so we could re-poll immediately
+    // how long relay could hold poll request (long-poll), in seconds. 0 - disabled
+    private final int pollWait;
+    // if true - file content is encrypted with key, derived from content,
+    // so relay could store it once and skip repeated uploads
+    private final boolean dedupe;
+    // chunk size for resumable uploads, in bytes
+    private final int uploadChunk;
+    // resumable uploads, which are not completed yet. Source file -> upload state
+    private final Map<String, PreparedFile> uploads = new ConcurrentHashMap<>();
+    // large files are split to segments of this size, in bytes
+    private final long segmentSize;
+    // number of parallel connections, used to send segments
+    private final int segmentStreams;
+    // if true - file content is encrypted with AES-GCM by chunks, if receivers support it
+    private final boolean chunkedCipher;
+    // small files, embedded into poll response. File id -> file container
+    private final Map<String, byte[]> inlineFiles = new ConcurrentHashMap<>();
+    // received embedded files, delivery is confirmed with next poll
+    private final Queue<String> delivered = new ConcurrentLinkedQueue<>();
+    // recently confirmed files: response, requested before confirmation, could still list them.
+    // Guarded by client's lock, together with downloading files
+    private final Set<String> confirmed = new HashSet<>();
+    private final Deque<String> confirmedOrder = new ArrayDeque<>();
+    // max number of files, requested with single batch download. 0 - disabled
+    private final int batchDownload;
+    // true while pending files are downloaded with batch requests
+    private final AtomicBoolean batchRunning = new AtomicBoolean();
     final TeleFilesWatch watch;
 
     TeleportaClient(ClientRuntimeContext ctx) throws NoSuchAlgorithmException,
@@ -68,6 +121,13 @@ public class TeleportaClient extends AbstractClient{
         // generate portal keys
         this.ctx.keyPair = ctx.savedKeyPair!=null ?
                 readSavedKeyPair(ctx.savedKeyPair) : tc.generateKeys();
+        this.pollWait = Integer.parseInt(System.getProperty("pollWait", "25"));
+        this.batchDownload = Integer.parseInt(System.getProperty("batchDownload", "1000"));
+        this.dedupe = Boolean.parseBoolean(System.getProperty("dedupe", "false"));
+        this.uploadChunk = 1024 * 1024 * Integer.parseInt(System.getProperty("uploadChunk", "4"));
+        this.segmentSize = 1024L * 1024 * Integer.parseInt(System.getProperty("segmentSize", "64"));
+        this.segmentStreams = Integer.parseInt(System.getProperty("segmentStreams", "4"));
+        this.chunkedCipher = Boolean.parseBoolean(System.getProperty("chunkedCipher", "true"));
     }
     /**
      * This is used only for testing
@@ -101,6 +161,11 @@ public class TeleportaClient extends AbstractClient{
         // remove dot, if found as last element
         if (relayUrl.endsWith("."))
             relayUrl = relayUrl.substring(0,relayUrl.length()-1);
+        // connections to relay are kept alive and reused: keep enough idle ones
+        // for parallel segments and poll. Must be set before first connection
+        if (System.getProperty("http.maxConnections") == null)
+            System.setProperty("http.maxConnections", String.valueOf(Math.max(5,
+                    Integer.parseInt(System.getProperty("segmentStreams", "4")) + 2)));
 
         // create teleporta client's home folder
         final File teleportaHome = checkCreateHomeFolder("teleporta"),
@@ -166,6 +231,12 @@ public class TeleportaClient extends AbstractClient{
                     c.watch.register(f.toPath());
             }
         }
+        // folder to send files to all portals at once
+        if (ctx.allowOutgoing && c.isBroadcast(c.broadcastFolder)) {
+            final File f = new File(outputDir, c.broadcastFolder);
+            checkCreateFolder(f);
+            c.watch.register(f.toPath());
+        }
         // don't register any watchers, if we're not allow to send anything
         if (ctx.allowOutgoing) {
             // register handler for new file events
@@ -174,14 +245,13 @@ public class TeleportaClient extends AbstractClient{
                 if(c.networkError)
                     return;
 
-                // check if portal exists on client side first
-                if (!ctx.portalNames.containsKey(receiver_name)) {
+                // get remote portals ids
+                final List<String> ids = c.receiversOf(receiver_name);
+                if (ids == null) {
                     // unknown portal
                     LOG.warning(TeleportaError.messageFor(0x6108, receiver_name));
                     return;
                 }
-                // get remote portal's id
-                final String id = ctx.portalNames.get(receiver_name);
                 try {
                     for (File f : files) {
                         // don't react if there is network error
@@ -190,7 +260,7 @@ public class TeleportaClient extends AbstractClient{
 
                         es.submit(() -> {
                             try {
-                                c.sendFile(f, id);
+                                c.sendFile(f, ids);
                             } catch (Exception e) {
                                 c.requireResend = true;
                                 LOG.log(Level.WARNING, e.getMessage(), e);
@@ -210,64 +280,114 @@ public class TeleportaClient extends AbstractClient{
 
         c.pollRunning = true;
         // schedule poll for incoming files
-        ses.scheduleAtFixedRate(() -> {
+        c.schedulePoll(outputDir, 0);
+    }
+    /**
+     * Schedule next poll for incoming files.
+     * If relay supports long-poll - next poll is started right after previous,
+     * otherwise - with fixed delay.
+     * @param outputDir
+     *          folder with outgoing files
+     * @param delay
+     *          delay before poll, in seconds
+     */
+    private void schedulePoll(File outputDir, long delay) {
+        ses.schedule(() -> {
             // check if poll stopped
-            if (!c.pollRunning)
+            if (!pollRunning)
                 return;
 
+            long next = POLL_INTERVAL;
             try {
-                // get pending files
-                final String[] files = c.getPending();
-                // if there was no 'connection error' raised - remove 'network error' mark
-                if (c.networkError)
-                    c.networkError = false; // first successful request turns this switch off
-
-                if (c.requireResend) {
-                    c.requireResend = false;
-                    c.sendAllNotDelivered(outputDir,ctx.useLockFile);
-                }
-
-                // if there are pending files - try to download them
-                if (files != null) {
-                    if (LOG.isLoggable(Level.FINE)
-                            && files.length>ctx.downloadingFiles.size())
-                        LOG.fine(TeleportaMessage
-                                .of("teleporta.system.message.foundPendingFiles", files.length));
-
-                    // there could be only *few* files always, no need for dir streaming
-                    for (String file : files) {
-                        if (ctx.downloadingFiles.contains(file))
-                            return;
+                // re-poll immediately only if relay held our request
+                // and there were no repeated files
+                if (poll(outputDir) && relayWaits)
+                    next = 0;
+            } finally {
+                schedulePoll(outputDir, next);
+            }
+        }, delay, TimeUnit.SECONDS);
+    }
+    /**
+     * Single poll for incoming files
+     * @param outputDir
+     *          folder with outgoing files
+     * @return
+     *      false if there was network error or all responded files are already downloading
+     */
+    private boolean poll(File outputDir) {
+        try {
+            // get pending files
+            final String[] files = getPending();
+            // if there was no 'connection error' raised - remove 'network error' mark
+            if (networkError)
+                networkError = false; // first successful request turns this switch off
+
+            if (requireResend) {
+                requireResend = false;
+                sendAllNotDelivered(outputDir,ctx.useLockFile);
+            }
+            // if there are pending files - try to download them
+            if (files == null)
+                return true;
+
+            if (LOG.isLoggable(Level.FINE)
+                    && files.length>ctx.downloadingFiles.size())
+                LOG.fine(TeleportaMessage
+                        .of("teleporta.system.message.foundPendingFiles", files.length));
+
+            boolean hasNew = false;
+            // there could be only *few* files always, no need for dir streaming
+            for (String file : files) {
+                // file could be embedded into response
+                final byte[] data = inlineFiles.remove(file);
+                // skip files that are already downloading or received
+                if (!startDownload(file))
+                    continue;
 
-                        ctx.downloadingFiles.add(file);
-                        es.submit(() -> {
-                            try {
-                                c.downloadFile(file);
-                                // must catch all exceptions there!
-                            } catch (Exception e) {
-                                LOG.log(Level.WARNING, e.getMessage(), e);
-                            } finally {
-                                ctx.downloadingFiles.remove(file);
-                            }
-                        });
+                hasNew = true;
+                // embedded file is small and already in memory, so it's unpacked right there:
+                // confirmation must be sent with next poll, which starts immediately
+                if (data != null)
+                    try {
+                        receiveInline(file, data);
+                    } catch (Exception e) {
+                        LOG.log(Level.WARNING, e.getMessage(), e);
+                    } finally {
+                        // received embedded file is kept as downloading till relay
+                        // gets confirmation, otherwise it could be listed again
+                        if (!delivered.contains(file))
+                            ctx.downloadingFiles.remove(file);
                     }
-                }
-            } catch (Exception e) {
-                // don't log all the time
-                if (c.networkError)
-                    return;
+                else
+                    es.submit(() -> {
+                        try {
+                            downloadFile(file);
+                            // must catch all exceptions there!
+                        } catch (Exception e) {
+                            LOG.log(Level.WARNING, e.getMessage(), e);
+                        } finally {
+                            ctx.downloadingFiles.remove(file);
+                        }
+                    });
+            }
+            return hasNew;
+        } catch (Exception e) {
+            // don't log all the time
+            if (networkError)
+                return false;
 
-                // put 'network error' mark on any exception
-                c.networkError = true;
-                c.requireResend = true;
+            // put 'network error' mark on any exception
+            networkError = true;
+            requireResend = true;
 
-                if (LOG.isLoggable(Level.FINE))
-                    LOG.log(Level.FINE, e.getMessage(), e);
-                else
-                    LOG.warning(e.getMessage());
+            if (LOG.isLoggable(Level.FINE))
+                LOG.log(Level.FINE, e.getMessage(), e);
+            else
+                LOG.warning(e.getMessage());
 
-            }
-        }, 0, 5, TimeUnit.SECONDS);
+            return false;
+        }
     }
 
     /**
@@ -277,19 +397,42 @@ public class TeleportaClient extends AbstractClient{
      * @throws IOException on i/o errors
      */
     public String[] getPending() throws IOException {
-        final String part = decodeUrl(ctx.relayUrl, "poll");
-        final URL u = new URL(ctx.relayUrl, String.format("%s/%s?to=%s&ts=%d",
+        final String part = ctx.routes.get("poll");
+        // key, that relay will use for response
+        final SessionKey session = ctx.session;
+        // confirm delivery of files, embedded into previous responses
+        final List<String> acks = takeAcks(MAX_ACKS);
+        final URL u = new URL(ctx.relayUrl, String.format("%s/%s?to=%s&ts=%d%s%s%s",
                 ctx.relayUrl.getPath(),
                 part,
                 ctx.sessionId,
-                System.currentTimeMillis()));
+                System.currentTimeMillis(),
+                // ask relay to hold request till new events
+                pollWait > 0 ? "&wait=" + pollWait : "",
+                session != null ? "&sk=" + session.id : "",
+                !acks.isEmpty() ? "&ack=" + String.join(",", acks) : ""));
         final URLConnection con = u.openConnection();
         // no need to check class, there always will be just HttpURLConnection
         final HttpURLConnection http = (HttpURLConnection) con;
         http.setDefaultUseCaches(false);
+        // don't hang forever on broken connection while relay holds request
+        if (pollWait > 0)
+            http.setReadTimeout((pollWait + 15) * 1000);
         setVersion(con,ctx);
-        final int code = http.getResponseCode();
+        final int code;
+        try {
+            code = http.getResponseCode();
+        } catch (IOException | RuntimeException e) {
+            // will be sent again with next poll
+            delivered.addAll(acks);
+            throw e;
+        }
+        // relay got confirmations, so files could not be listed again
+        confirm(acks);
+        // relay sets this header only if it supports long-poll and held our request
+        relayWaits = http.getHeaderField(TeleportaRelay.POLL_WAIT_HEADER) != null;
         if (code != HttpURLConnection.HTTP_OK) {
+            release(http);
             // this is probably wrong (because we rely on HTTP error code here),
             // but used for automatic re-registering when relay restarts
             if (code == HttpURLConnection.HTTP_FORBIDDEN) {
@@ -305,33 +448,29 @@ public class TeleportaClient extends AbstractClient{
         try (CountingInputStream cin = new CountingInputStream(http.getInputStream());
                 BufferedInputStream in = new BufferedInputStream(cin, 512);
              ByteArrayOutputStream bout = new ByteArrayOutputStream()) {
-            // check for packet header
+            // check for packet header and get key
             // note: we allow empty data, because relay would not send anything
             // if there is no pending events
-            if (!checkPacketHeader(in,true)) {
-                http.disconnect();
+            final SecretKey rkey = readPacketKey(in, true, session);
+            if (rkey == null)
                 return null;
-            }
-            // note: this is correct case, because we don't respond at all,
-            //  if there are no pending files or events
-            final SecretKeySpec rkey = readSessionKey(in, true,ctx.keyPair.getPrivate());
-            if (rkey == null) {
-                http.disconnect();
-                return null;
-            }
             tc.decryptData(rkey, in, bout);
             if (LOG.isLoggable(Level.FINE))
                 LOG.fine(TeleportaMessage.of("teleporta.system.message.bytesReceived",
                         cin.getCount()));
 
-            try (ByteArrayInputStream bin = new ByteArrayInputStream(bout.toByteArray())) {
-                props.load(bin);
+            // small files could be embedded into response, after properties
+            try (ByteArrayInputStream bin = new ByteArrayInputStream(
+                    hasFeature(ctx.relayFeatures, FEATURE_INLINE) ?
+                            readInlined(bout.toByteArray(), inlineFiles) : bout.toByteArray())) {
+                TeleCodec.load(props, bin, isBinary(http));
             }
+            updateSession(props);
             if (LOG.isLoggable(Level.FINE))
                 LOG.fine(TeleportaMessage.of("teleporta.system.message.propsCount",
                         props.size()));
         } finally {
-            http.disconnect();
+            release(http);
         }
         // no properties at all - means no pending files and no additional commands - just return null
         if (props.isEmpty())
@@ -348,6 +487,12 @@ public class TeleportaClient extends AbstractClient{
         if (props.containsKey("updateClipboard"))
             downloadClipboard();
 
+        // there are more pending files, than listed - get them with batch requests
+        if (props.containsKey("backlog") && batchDownload > 0
+                && hasFeature(ctx.relayFeatures, FEATURE_BATCH)
+                && batchRunning.compareAndSet(false, true))
+            es.submit(this::drainBacklog);
+
         // if there is no 'files' property - just respond null
         if (!props.containsKey("files"))
             return null;
@@ -370,26 +515,45 @@ public class TeleportaClient extends AbstractClient{
             return;
 
         int total = Integer.parseInt(portals.getProperty("total","0"));
-        if (total<=0)
+        // if true - relay sent only changes since our version
+        final boolean delta = Boolean.parseBoolean(portals.getProperty("delta","false"));
+        final String removed = portals.getProperty("removed",null);
+        if (total<=0 && (!delta || removed == null)) {
+            ctx.portalsVersion = parseVersion(portals.getProperty("version", null));
             return;
-
+        }
         if (LOG.isLoggable(Level.FINE))
             LOG.fine(TeleportaMessage.of("teleporta.system.message.foundPortals", total));
 
         final File outputDir = new File(ctx.storageDir, TeleportaMessage.of("teleporta.folder.to"));
         final Set<String> prevPortals = new HashSet<>(ctx.portalNames.keySet());
-        ctx.portals.clear();
-        ctx.portalNames.clear();
+        if (delta) {
+            // apply removals
+            if (removed != null)
+                for (String id : removed.split(",")) {
+                    final TeleportaCommons.RegisteredPortal rp = ctx.portals.remove(id);
+                    if (rp != null)
+                        ctx.portalNames.remove(rp.name, id);
+                    TeleCrypt.forgetPublicKey(id);
+                }
+        } else {
+            ctx.portals.clear();
+            ctx.portalNames.clear();
+        }
         for (int t = 1; t <= total; t++) {
             final String id = portals.getProperty(String.format("portal.%d.id", t),null),
                     name = portals.getProperty(String.format("portal.%d.name", t),null),
-                    publicKey = portals.getProperty(String.format("portal.%d.publicKey", t),null);
+                    publicKey = portals.getProperty(String.format("portal.%d.publicKey", t),null),
+                    features = portals.getProperty(String.format("portal.%d.features", t),null);
             // ignore broken record
             if (id==null || name == null || publicKey == null)
                 continue;
 
-            ctx.portals.put(id, new TeleportaCommons.RegisteredPortal(name, publicKey));
-            ctx.portalNames.put(name, id);
+            ctx.portals.put(id, new TeleportaCommons.RegisteredPortal(name, publicKey, features));
+            // same name could be registered again, with another id
+            final String prevId = ctx.portalNames.put(name, id);
+            if (prevId != null && !prevId.equals(id))
+                ctx.portals.remove(prevId);
 
             if (ctx.allowOutgoing && updateWatcher && !prevPortals.contains(name)) {
                     final File f = new File(outputDir, name);
@@ -397,7 +561,8 @@ public class TeleportaClient extends AbstractClient{
                     watch.register(f.toPath());
             }
         }
-        if (ctx.allowOutgoing && updateWatcher && !ctx.portalNames.isEmpty()) {
+        // delta could remove all remaining portals, so set could be empty there
+        if (ctx.allowOutgoing && updateWatcher) {
             if (LOG.isLoggable(Level.FINE))
                 LOG.fine(TeleportaMessage.of("teleporta.system.message.updatingFolderWatchers",
                         ctx.portalNames.size()));
@@ -424,6 +589,24 @@ public class TeleportaClient extends AbstractClient{
             }
 
         }
+        // remember version, to get only changes next time
+        ctx.portalsVersion = parseVersion(portals.getProperty("version", null));
+    }
+    /**
+     * Parses registry version, responded by relay
+     * @param v
+     *          version string, could be null
+     * @return
+     *      version or -1 if relay does not support versions
+     */
+    private static long parseVersion(String v) {
+        if (v == null)
+            return -1;
+        try {
+            return Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
     private KeyPair readSavedKeyPair(String savedKeyPairFile) throws IOException,
             NoSuchAlgorithmException, InvalidKeySpecException {
@@ -452,6 +635,65 @@ public class TeleportaClient extends AbstractClient{
         return restoreKeyPair(Files.readAllBytes(k.toPath()));
     }
 
+    /**
+     * Checks packet header and resolves key for packet data.
+     * Session packets are encrypted with shared session key, legacy packets
+     * contain one-time key, wrapped with portal's public key.
+     * @param in
+     *          input stream
+     * @param allowEmpty
+     *          if true - will not raise exception on empty input
+     * @param session
+     *          session key, sent to relay with request. Could be null
+     * @return
+     *      key to decrypt packet data or null
+     * @throws IOException
+     *          on i/o errors or incorrect header
+     */
+    private SecretKey readPacketKey(InputStream in, boolean allowEmpty,
+                                    SessionKey session) throws IOException {
+        final byte[] head = new byte[TELEPORTA_PACKET_HEADER.length];
+        final int c = in.read(head);
+        if (c <= 0 && allowEmpty)
+            return null;
+
+        if (c == head.length && Arrays.equals(head, TELEPORTA_SESSION_PACKET_HEADER)) {
+            // relay answers in session mode only if key id matches
+            if (session == null)
+                LOG.warning(TeleportaError.messageFor(0x7275));
+            return session != null ? session.key : null;
+        }
+        if (c != head.length || !Arrays.equals(head, TELEPORTA_PACKET_HEADER))
+            throw TeleportaError.withError(0x7018);
+
+        return readSessionKey(in, allowEmpty, ctx.keyPair.getPrivate());
+    }
+    /**
+     * Checks if relay responded in binary codec
+     * @param http
+     *          current connection
+     * @return
+     *      true if response body is encoded with binary codec
+     */
+    private static boolean isBinary(HttpURLConnection http) {
+        return TeleCodec.isSupported(http.getHeaderField(TeleCodec.HEADER));
+    }
+    /**
+     * Applies new session key, if relay sent it.
+     * Key properties are removed, so they will not be processed as data.
+     * @param props
+     *          decrypted packet data
+     */
+    private void updateSession(Properties props) {
+        final Object key = props.remove("sessionKey"),
+                keyId = props.remove("sessionKeyId");
+        if (key == null || keyId == null)
+            return;
+        ctx.session = new SessionKey(keyId.toString(),
+                new SecretKeySpec(fromHex(key.toString()), "AES"));
+        if (LOG.isLoggable(Level.FINE))
+            LOG.fine(TeleportaMessage.of("teleporta.system.message.sessionKeyUpdated", ctx.session.id));
+    }
     /**
      * Load portals list
      *
@@ -460,12 +702,17 @@ public class TeleportaClient extends AbstractClient{
      */
     private Properties getPortals() throws IOException {
         final Properties out = new Properties();
-        final String part = decodeUrl(ctx.relayUrl, "get-portals");
-        final URL u = new URL(ctx.relayUrl, String.format("%s/%s?to=%s&ts=%d",
+        final String part = ctx.routes.get("get-portals");
+        final SessionKey session = ctx.session;
+        final long version = ctx.portalsVersion;
+        final URL u = new URL(ctx.relayUrl, String.format("%s/%s?to=%s&ts=%d%s%s",
                 ctx.relayUrl.getPath(),
                 part,
                 ctx.sessionId,
-                System.currentTimeMillis()));
+                System.currentTimeMillis(),
+                session != null ? "&sk=" + session.id : "",
+                // ask only for changes since known version
+                version >= 0 ? "&since=" + version : ""));
         final URLConnection con = u.openConnection();
         final HttpURLConnection http = (HttpURLConnection) con;
         setVersion(con,ctx);
@@ -473,22 +720,15 @@ public class TeleportaClient extends AbstractClient{
         if (code != HttpURLConnection.HTTP_OK) {
             // incorrect relay response
             LOG.warning(TeleportaError.messageFor(0x7002, code));
-            http.disconnect();
+            release(http);
             return out;
         }
         try (CountingInputStream cin = new CountingInputStream(http.getInputStream());
                 BufferedInputStream in = new BufferedInputStream(cin, 512);
              ByteArrayOutputStream bout = new ByteArrayOutputStream()) {
-            // check for packet header
-            if (!checkPacketHeader(in,true)) {
-                LOG.warning(TeleportaError.messageFor(0x7273));
-                http.disconnect();
-                return null;
-            }
-            final SecretKeySpec rkey = readSessionKey(in, false,ctx.keyPair.getPrivate());
+            final SecretKey rkey = readPacketKey(in, false, session);
             if (rkey == null) {
                 LOG.warning(TeleportaError.messageFor(0x7274));
-                http.disconnect();
                 return out;
             }
             tc.decryptData(rkey, in, bout);
@@ -497,14 +737,15 @@ public class TeleportaClient extends AbstractClient{
                         cin.getCount()));
 
             try (ByteArrayInputStream bin = new ByteArrayInputStream(bout.toByteArray())) {
-                out.load(bin);
+                TeleCodec.load(out, bin, isBinary(http));
             }
+            updateSession(out);
             if (LOG.isLoggable(Level.FINE))
                 LOG.fine(TeleportaMessage.of("teleporta.system.message.propsCount",
                         out.size()));
             return out;
         } finally {
-            http.disconnect();
+            release(http);
         }
     }
 
@@ -519,7 +760,7 @@ public class TeleportaClient extends AbstractClient{
             LOG.fine(TeleportaMessage
                     .of("teleporta.system.message.sendingClipboard", data.length()));
 
-        final String part = decodeUrl(ctx.relayUrl, "cb-upload");
+        final String part = ctx.routes.get("cb-upload");
         final URL u = new URL(ctx.relayUrl, String.format("%s/%s?from=%s",
                 ctx.relayUrl.getPath(),
                 part,
@@ -542,22 +783,21 @@ public class TeleportaClient extends AbstractClient{
             tc.encryptData(key, in, out);
             out.flush();
         } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            http.disconnect();
             // Error encrypting clipboard data
             throw TeleportaError.withError(0x7214,e);
         }
         // MUST be called, otherwise request will not be executed!
         int code = http.getResponseCode();
+        release(http);
         if (code != HttpURLConnection.HTTP_OK) {
             // incorrect relay response
             LOG.warning(TeleportaError.messageFor(0x7002, code));
-            http.disconnect();
             return;
         }
         if (LOG.isLoggable(Level.FINE))
             LOG.fine(TeleportaMessage.of("teleporta.system.message.clipboardSent",
                     data.length()));
-
-        http.disconnect();
     }
 
     /**
@@ -568,92 +808,913 @@ public class TeleportaClient extends AbstractClient{
      * @throws IOException on i/o errors
      */
     public void sendFile(File file, String receiverId) throws IOException {
+        sendFile(file, Collections.singletonList(receiverId));
+    }
+    /**
+     * Send file to many portals.
+     * If relay supports it - file is encrypted and uploaded once, with file key
+     * wrapped for each receiver. Otherwise file is uploaded to each receiver separately.
+     *
+     * @param file       source file
+     * @param receiverIds remote portals ids
+     * @throws IOException on i/o errors
+     */
+    public void sendFile(File file, List<String> receiverIds) throws IOException {
         if (networkError)
             return;
 
-        if (ctx.processingFiles.contains(file.getAbsolutePath()))
+        if (!ctx.processingFiles.add(file.getAbsolutePath()))
             return;
 
-        if (LOG.isLoggable(Level.FINE))
-            LOG.fine(TeleportaMessage.of("teleporta.system.message.sendingFile",
-                    file.getAbsolutePath()));
+        try {
+            if (LOG.isLoggable(Level.FINE))
+                LOG.fine(TeleportaMessage.of("teleporta.system.message.sendingFile",
+                        file.getAbsolutePath()));
+            // receivers could expire since watcher event
+            final List<String> ids = new ArrayList<>(receiverIds.size());
+            for (String id : receiverIds)
+                if (ctx.portals.containsKey(id))
+                    ids.add(id);
+                else
+                    LOG.warning(TeleportaError.messageFor(0x6108, id));
+            if (ids.isEmpty())
+                return;
 
-        final String part = decodeUrl(ctx.relayUrl, "file-upload");
-        final URL u = new URL(ctx.relayUrl, String.format("%s/%s?from=%s&to=%s",
+            boolean sent = true;
+            if (ids.size() == 1 || hasFeature(ctx.relayFeatures, FEATURE_FANOUT)
+                    && allSupport(ids, FEATURE_KEYS))
+                // content could be already stored on relay
+                sent = upload(file, ids, storeBlob(file, ids));
+            else
+                // old relay or receivers: one upload for each receiver
+                for (String id : ids)
+                    sent &= upload(file, Collections.singletonList(id), null);
+            if (!sent)
+                return;
+
+            if (file.isFile() && !file.delete())
+                LOG.warning(TeleportaError.messageFor(0x6106,
+                        file.getAbsolutePath()));
+            else if (file.isDirectory())
+                deleteRecursive(file, true,null);
+
+            if (LOG.isLoggable(Level.FINE))
+                LOG.fine(TeleportaMessage.of("teleporta.system.message.fileSent",
+                        file.getAbsolutePath()));
+        } finally {
+            ctx.processingFiles.remove(file.getAbsolutePath());
+        }
+    }
+    /**
+     * Checks if all receivers support feature
+     * @param receiverIds
+     *          remote portals ids
+     * @param feature
+     *          feature to check
+     * @return
+     *      true if all receivers support it
+     */
+    private boolean allSupport(List<String> receiverIds, String feature) {
+        for (String id : receiverIds) {
+            final TeleportaCommons.RegisteredPortal p = ctx.portals.get(id);
+            if (p == null || !hasFeature(p.features, feature))
+                return false;
+        }
+        return true;
+    }
+    /**
+     * File content, stored in relay's blob store
+     */
+    static class ContentBlob {
+        final String hash; // hash of encrypted content, used as blob id
+        final SecretKey key; // key and IV, derived from content
+        final IvParameterSpec iv;
+        final boolean compressed, // if true - content was compressed before encryption
+                chunked; // if true - content was encrypted with AES-GCM by chunks
+        ContentBlob(String hash, SecretKey key, IvParameterSpec iv,
+                    boolean compressed, boolean chunked) {
+            this.hash = hash;
+            this.key = key;
+            this.iv = iv;
+            this.compressed = compressed;
+            this.chunked = chunked;
+        }
+    }
+    /**
+     * Stores file content in relay's blob store, if relay and all receivers support it.
+     * Encrypted content is same for same file, so its hash is calculated locally
+     * and upload is skipped, if relay already has it.
+     * @param file
+     *          source file
+     * @param receiverIds
+     *          remote portals ids
+     * @return
+     *      stored blob or null, if content should be sent with file
+     * @throws IOException
+     *          on i/o errors
+     */
+    private ContentBlob storeBlob(File file, List<String> receiverIds) throws IOException {
+        if (!dedupe || !file.isFile() || !hasFeature(ctx.relayFeatures, FEATURE_CAS))
+            return null;
+        boolean deflate = true, gcm = chunkedCipher;
+        for (String id : receiverIds) {
+            final TeleportaCommons.RegisteredPortal p = ctx.portals.get(id);
+            if (!hasFeature(p.features, FEATURE_CAS))
+                return null;
+            deflate &= hasFeature(p.features, FEATURE_DEFLATE);
+            gcm &= hasFeature(p.features, FEATURE_GCM);
+        }
+        final byte[] contentHash = digestOf(file);
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw TeleportaError.withError(0x7213, e);
+        }
+        final SecretKey key = tc.deriveContentKey(contentHash);
+        final IvParameterSpec iv = tc.deriveContentIv(contentHash);
+        final boolean compress = compressData && deflate && isCompressible(file);
+        // encrypt without output, just to get hash
+        try (InputStream in = new FileInputStream(file);
+             OutputStream out = new DigestOutputStream(new OutputStream() {
+                 @Override
+                 public void write(int b) {
+                 }
+                 @Override
+                 public void write(byte[] b, int off, int len) {
+                 }
+             }, md)) {
+            tc.encryptContent(key, iv, in, out, compress, gcm);
+        }
+        final ContentBlob blob = new ContentBlob(toHex(md.digest(), 0, 0), key, iv,
+                compress, gcm);
+        // 'have it' check: relay responds 200 if content is already stored
+        if (blobRequest("blob-check", blob, null) == HttpURLConnection.HTTP_OK) {
+            if (LOG.isLoggable(Level.FINE))
+                LOG.fine(TeleportaMessage.of("teleporta.system.message.blobFound", blob.hash));
+            return blob;
+        }
+        final int code = blobRequest("blob-upload", blob, file);
+        if (code == HttpURLConnection.HTTP_OK)
+            return blob;
+        LOG.warning(TeleportaError.messageFor(0x7002, code));
+        return null;
+    }
+    /**
+     * Sends request to relay's blob store
+     * @param part
+     *          endpoint name
+     * @param blob
+     *          content blob
+     * @param file
+     *          if not null - file content is encrypted and uploaded
+     * @return
+     *      HTTP response code
+     * @throws IOException
+     *          on i/o errors
+     */
+    private int blobRequest(String part, ContentBlob blob, File file) throws IOException {
+        final URL u = new URL(ctx.relayUrl, String.format("%s/%s?from=%s&blob=%s",
                 ctx.relayUrl.getPath(),
-                part,
-                ctx.sessionId, receiverId));
-        final URLConnection con = u.openConnection();
-        final HttpURLConnection http = (HttpURLConnection) con;
-        setVersion(con,ctx);
-        http.setChunkedStreamingMode(1024 * 1024 * 5); // 5Mb
-        http.setRequestMethod("POST");
-        http.setDoOutput(true);
+                ctx.routes.get(part),
+                ctx.sessionId, blob.hash));
+        final HttpURLConnection http = (HttpURLConnection) u.openConnection();
+        setVersion(http,ctx);
+        if (file != null) {
+            http.setChunkedStreamingMode(1024 * 1024 * 5); // 5Mb
+            http.setRequestMethod("POST");
+            http.setDoOutput(true);
+            try (OutputStream out = http.getOutputStream();
+                 InputStream in = new FileInputStream(file)) {
+                tc.encryptContent(blob.key, blob.iv, in, out, blob.compressed, blob.chunked);
+            } catch (IOException | RuntimeException e) {
+                http.disconnect();
+                throw e;
+            }
+        }
+        try {
+            return http.getResponseCode();
+        } finally {
+            release(http);
+        }
+    }
+    /**
+     * File, prepared for upload: key and encoded metadata.
+     * Allows to generate exactly same upload stream again, to resume upload.
+     */
+    static class PreparedFile {
+        final SecretKey key; // file key (AES)
+        final IvParameterSpec iv;
+        final byte[] meta; // encoded metadata
+        final boolean binary, // if true - metadata is in binary codec
+                compress, // if true - content is compressed before encryption
+                chunked; // if true - content is encrypted with AES-GCM by chunks
+        final long size, modified, // source file state, upload could be resumed only if not changed
+                created = System.currentTimeMillis(); // used as zip entries time
+        final String receivers;
+        // for resumable uploads: relay's upload id, SHA-256 of source file content
+        // and CRC32 of stream at each acknowledged offset
+        volatile String uploadId;
+        volatile byte[] digest;
+        volatile boolean resumable, // if true - content digest is calculated while it's encrypted
+                repeat; // if true - same, verified content is encrypted again with same key and nonce
+        final Map<Long, Long> checkpoints = new ConcurrentHashMap<>();
+        PreparedFile(SecretKey key, IvParameterSpec iv, byte[] meta, boolean binary,
+                     boolean compress, boolean chunked, File file, String receivers) {
+            this.key = key;
+            this.iv = iv;
+            this.meta = meta;
+            this.binary = binary;
+            this.compress = compress;
+            this.chunked = chunked;
+            this.size = file.length();
+            this.modified = file.lastModified();
+            this.receivers = receivers;
+        }
+        boolean matches(File file, String receivers) {
+            return size == file.length() && modified == file.lastModified()
+                    && this.receivers.equals(receivers);
+        }
+    }
+    /**
+     * Generates file key and metadata
+     * @param file
+     *          source file
+     * @param receiverIds
+     *          remote portals ids
+     * @param blob
+     *          if not null - file content is already in relay's blob store
+     * @param segments
+     *          number of segments, if file content is sent with segments, otherwise 0
+     * @return
+     *      prepared file
+     * @throws IOException
+     *          on i/o errors
+     */
+    private PreparedFile prepare(File file, List<String> receiverIds,
+                                 ContentBlob blob, int segments) throws IOException {
         // build metadata
         final Properties props = new Properties();
         props.setProperty("name", file.getName());
         props.setProperty("from", ctx.sessionId);
         props.setProperty("type", file.isDirectory() ? "folder" : "file");
-        final SecretKey key;
-        try (OutputStream out = http.getOutputStream();
-                CountingZipOutputStream zout = new CountingZipOutputStream(file.getName(),
+        try {
+            // generate session key (AES), or use key of stored content
+            final SecretKey key = blob != null ? blob.key : tc.generateFileKey();
+            // use compact metadata and compression, only if all receivers support it
+            boolean binary = true, deflate = true, gcm = chunkedCipher;
+            for (String id : receiverIds) {
+                final TeleportaCommons.RegisteredPortal p = ctx.portals.get(id);
+                final PublicKey pk = tc.restorePublicKey(id, p.publicKey);
+                final byte[] enc = tc.encryptKey(key.getEncoded(), pk);
+                // each receiver finds own copy of file key by id
+                props.setProperty(receiverIds.size() == 1 ? "fileKey" :
+                        "fileKey." + PK.toExternal(id), toHex(enc, 0, 0));
+                binary &= hasFeature(p.features, FEATURE_CODEC);
+                deflate &= hasFeature(p.features, FEATURE_DEFLATE);
+                gcm &= hasFeature(p.features, FEATURE_GCM);
+            }
+            final boolean compress = blob != null ? blob.compressed :
+                    !file.isDirectory() && compressData && deflate && isCompressible(file);
+            if (compress)
+                props.setProperty("compression", FEATURE_DEFLATE);
+            // folders are always sent with AES-CBC
+            final boolean chunked = blob != null ? blob.chunked : !file.isDirectory() && gcm;
+            if (chunked)
+                props.setProperty("cipher", FEATURE_GCM);
+            if (blob != null)
+                props.setProperty("blob", blob.hash);
+            final IvParameterSpec iv = blob != null ? blob.iv : tc.generateIv();
+            if (segments > 0) {
+                props.setProperty("segments", String.valueOf(segments));
+                props.setProperty("segmentSize", String.valueOf(segmentSize));
+                // data entry is empty, so IV of segments and plain size are sent there
+                props.setProperty("iv", toHex(iv.getIV(), 0, 0));
+                props.setProperty("size", String.valueOf(file.length()));
+            }
+            final ByteArrayOutputStream meta = new ByteArrayOutputStream();
+            TeleCodec.store(props, meta, binary);
+            return new PreparedFile(key, iv,
+                    meta.toByteArray(), binary, compress, chunked, file,
+                    String.join(",", receiverIds));
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            // Error creating session key
+            throw TeleportaError.withError(0x7213,e);
+        }
+    }
+    /**
+     * Writes file container: header, metadata and encrypted content
+     * @param file
+     *          source file
+     * @param pf
+     *          prepared file
+     * @param noData
+     *          if true - content is sent separately (blob store or segments),
+     *          so data entry is left empty
+     * @param out
+     *          target stream, will be closed
+     * @throws IOException
+     *          on i/o errors
+     */
+    private void writeContainer(File file, PreparedFile pf, boolean noData,
+                                OutputStream out) throws IOException {
+        try (CountingZipOutputStream zout = new CountingZipOutputStream(file.getName(),
                         file.length(),out)) {
-            ctx.processingFiles.add(file.getAbsolutePath());
             out.write(TELEPORTED_FILE_HEADER);
-            key = tc.generateFileKey(); // generate session key (AES)
-            final TeleportaCommons.RegisteredPortal p = ctx.portals.get(receiverId);
-            final byte[] foreignPk = fromHex(p.publicKey);
-            final PublicKey pk = tc.restorePublicKey(foreignPk);
-            final byte[] enc = tc.encryptKey(key.getEncoded(), pk);
-            props.setProperty("fileKey", toHex(enc, 0, 0));
-            zout.putNextEntry(new ZipEntry(ENTRY_META));
-            props.store(zout, "");
-            zout.putNextEntry(new ZipEntry(ENTRY_DATA));
+            // fixed time, so same stream could be generated again
+            final ZipEntry me = new ZipEntry(pf.binary ? ENTRY_META_BIN : ENTRY_META);
+            me.setTime(pf.created);
+            zout.putNextEntry(me);
+            zout.write(pf.meta);
+            // encrypted content is not compressible, so don't waste CPU on it
+            zout.setLevel(Deflater.NO_COMPRESSION);
+            final ZipEntry de = new ZipEntry(ENTRY_DATA);
+            de.setTime(pf.created);
+            zout.putNextEntry(de);
 
             final boolean renameWithPercent =
                     Boolean.parseBoolean(System.getProperty("renameWithPercent", "true"));
 
+            // content is already on relay, so data entry is left empty
+            if (noData)
+                zout.closeEntry();
             // stream directory right into network stream!
-            if (file.isDirectory())
-                tc.encryptFolder(key,file,zout);
+            else if (file.isDirectory())
+                tc.encryptFolder(pf.key,file,zout);
             else
                 // we allow renaming with % of outgoing files only if
                 // lockfile was enabled, otherwise there would be mess
                 try (InputStream in = renameWithPercent && ctx.useLockFile ?
                         new ReplacingFileInputStream(file) :
                         new FileInputStream(file)){
-                    tc.encryptData(key, in, zout);
+                    if (pf.resumable)
+                        encryptResumable(pf, in, zout);
+                    else
+                        tc.encryptData(pf.key, pf.iv, in, zout, pf.compress, pf.chunked);
                 }
 
             zout.closeEntry();
             zout.flush();
-            // must be called!
-            zout.close();
-            // MUST be called, otherwise request will not be executed!
-            int code = http.getResponseCode();
+        }
+    }
+    /**
+     * Encrypts content of resumable upload. Content digest is calculated in same pass,
+     * so file is not read again only to check it before resume.
+     * If upload fails - rest of file is read to complete the digest
+     * @param pf
+     *          prepared file
+     * @param in
+     *          file content
+     * @param out
+     *          target stream
+     * @throws IOException
+     *          on i/o errors
+     */
+    private void encryptResumable(PreparedFile pf, InputStream in,
+                                  OutputStream out) throws IOException {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw TeleportaError.withError(0x7213, e);
+        }
+        final DigestInputStream din = new DigestInputStream(in, md);
+        byte[] digest = null;
+        try {
+            // resumed upload encrypts same content again, which is checked by digest
+            if (pf.repeat)
+                tc.encryptContent(pf.key, pf.iv, din, out, pf.compress, pf.chunked);
+            else
+                tc.encryptData(pf.key, pf.iv, din, out, pf.compress, pf.chunked);
+            digest = md.digest();
+        } finally {
+            // upload failed: read rest of file to complete the digest
+            if (digest == null)
+                try {
+                    final byte[] buffer = new byte[8192];
+                    while (din.read(buffer) != -1) {
+                        // digest is updated on read
+                    }
+                    digest = md.digest();
+                } catch (IOException ignored) {
+                    // incomplete digest, upload will not be resumed
+                }
+            pf.digest = digest;
+        }
+    }
+    /**
+     * Encrypts and uploads file to relay, once for all receivers
+     * @param file
+     *          source file
+     * @param receiverIds
+     *          remote portals ids
+     * @param blob
+     *          if not null - file content is already in relay's blob store,
+     *          so only metadata is uploaded
+     * @return
+     *      true if relay accepted file
+     * @throws IOException
+     *          on i/o errors
+     */
+    private boolean upload(File file, List<String> receiverIds, ContentBlob blob) throws IOException {
+        // large files are split to segments and sent in parallel, if everyone supports it
+        if (blob == null && isSegmented(file, receiverIds))
+            return uploadSegmented(file, receiverIds);
+        // large files are sent with resumable uploads, if relay supports it
+        if (blob == null && file.isFile() && file.length() > uploadChunk
+                && hasFeature(ctx.relayFeatures, FEATURE_RESUME))
+            return uploadResumable(file, receiverIds);
+
+        final String part = ctx.routes.get("file-upload");
+        final URL u = new URL(ctx.relayUrl, String.format("%s/%s?from=%s&to=%s%s",
+                ctx.relayUrl.getPath(),
+                part,
+                ctx.sessionId, String.join(",", receiverIds),
+                blob != null ? "&blob=" + blob.hash : ""));
+        final URLConnection con = u.openConnection();
+        final HttpURLConnection http = (HttpURLConnection) con;
+        setVersion(con,ctx);
+        http.setChunkedStreamingMode(1024 * 1024 * 5); // 5Mb
+        http.setRequestMethod("POST");
+        http.setDoOutput(true);
+        try {
+            final PreparedFile pf = prepare(file, receiverIds, blob, 0);
+            // must be closed, otherwise request will not be executed!
+            writeContainer(file, pf, blob != null, http.getOutputStream());
+        } catch (IOException | RuntimeException e) {
+            http.disconnect();
+            throw e;
+        }
+        final int code;
+        try {
+            code = http.getResponseCode();
+        } finally {
+            release(http);
+        }
+        if (code != HttpURLConnection.HTTP_OK) {
+            LOG.warning(TeleportaError.messageFor(0x7002, code));
+            return false;
+        }
+        return true;
+    }
+    /**
+     * Checks if file should be split to segments
+     * @param file
+     *          source file
+     * @param receiverIds
+     *          remote portals ids
+     * @return
+     *      true if file is large enough, relay and all receivers support segments
+     */
+    private boolean isSegmented(File file, List<String> receiverIds) {
+        if (segmentStreams < 2 || !file.isFile() || file.length() <= segmentSize
+                || !hasFeature(ctx.relayFeatures, FEATURE_SEGMENTS))
+            return false;
+        for (String id : receiverIds)
+            if (!hasFeature(ctx.portals.get(id).features, FEATURE_SEGMENTS))
+                return false;
+        return true;
+    }
+    /**
+     * Uploads file, split to segments. Each segment is encrypted separately
+     * and sent with own connection, in parallel. Then file container with metadata is sent,
+     * which makes file visible for receivers.
+     * @param file
+     *          source file
+     * @param receiverIds
+     *          remote portals ids
+     * @return
+     *      true if relay accepted file
+     * @throws IOException
+     *          on i/o errors
+     */
+    private boolean uploadSegmented(File file, List<String> receiverIds) throws IOException {
+        final int segments = (int) ((file.length() + segmentSize - 1) / segmentSize);
+        final PreparedFile pf = prepare(file, receiverIds, null, segments);
+        final Properties resp = uploadRequest("upload-start",
+                "&to=" + String.join(",", receiverIds), null, 0);
+        final String uploadId = resp != null ? resp.getProperty("upload") : null;
+        if (uploadId == null)
+            return false;
+        // positional reads, so single channel is shared between all segments
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            runSegments(segments, seg -> uploadSegment(in, pf, uploadId, seg, segments));
+        }
+        // content is in segments, so container has only metadata
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeContainer(file, pf, true, out);
+        return uploadRequest("upload-chunk", String.format("&upload=%s&offset=0&last=true",
+                uploadId), out.toByteArray(), out.size()) != null;
+    }
+    /**
+     * Encrypts and uploads single segment
+     * @param in
+     *          source file channel
+     * @param pf
+     *          prepared file
+     * @param uploadId
+     *          relay's upload id
+     * @param seg
+     *          segment number
+     * @param segments
+     *          total number of segments
+     * @throws IOException
+     *          on i/o errors
+     */
+    private void uploadSegment(FileChannel in, PreparedFile pf,
+                               String uploadId, int seg, int segments) throws IOException {
+        final URL u = new URL(ctx.relayUrl, String.format("%s/%s?from=%s&upload=%s&seg=%d",
+                ctx.relayUrl.getPath(),
+                ctx.routes.get("segment-upload"),
+                ctx.sessionId, uploadId, seg));
+        final HttpURLConnection http = (HttpURLConnection) u.openConnection();
+        setVersion(http,ctx);
+        http.setChunkedStreamingMode(1024 * 1024 * 5); // 5Mb
+        http.setRequestMethod("POST");
+        http.setDoOutput(true);
+        try (OutputStream out = http.getOutputStream()) {
+            // each segment has own IV, derived from segment number, so could be
+            // decrypted separately, but only at its own position
+            tc.encryptSegment(pf.key, pf.iv, seg, segments, new SegmentInputStream(in,
+                    seg * segmentSize, segmentSize), out, pf.compress, pf.chunked);
+        } catch (IOException | RuntimeException e) {
+            http.disconnect();
+            throw e;
+        }
+        final int code;
+        try {
+            code = http.getResponseCode();
+        } finally {
+            release(http);
+        }
+        if (code != HttpURLConnection.HTTP_OK)
+            throw TeleportaError.withError(0x7002, code);
+    }
+    /**
+     * Downloads and decrypts file segments in parallel, into target file
+     * @param fileId
+     *          file id
+     * @param props
+     *          file metadata
+     * @param key
+     *          file key
+     * @param out
+     *          target file
+     * @throws IOException
+     *          on i/o errors
+     */
+    private void downloadSegments(String fileId, Properties props,
+                                  SecretKey key, File out) throws IOException {
+        final int segments = Integer.parseInt(props.getProperty("segments"));
+        final long size = Long.parseLong(props.getProperty("segmentSize")),
+                total = Long.parseLong(props.getProperty("size"));
+        // each segment, except last one, is full
+        if (segments < 1 || size < 1 || total <= (segments - 1) * size || total > segments * size)
+            throw TeleportaError.withError(0x7286, fileId, total, segments * size);
+        final IvParameterSpec iv = new IvParameterSpec(fromHex(props.getProperty("iv")));
+        final boolean compressed = FEATURE_DEFLATE.equals(props.getProperty("compression")),
+                chunked = FEATURE_GCM.equals(props.getProperty("cipher"));
+        // segments are written by offset, so order of arrival does not matter
+        try (FileChannel fout = FileChannel.open(out.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            runSegments(segments, seg -> {
+                final long offset = seg * size;
+                final URL u = new URL(ctx.relayUrl, String.format("%s/%s?to=%s&file=%s&seg=%d",
+                        ctx.relayUrl.getPath(),
+                        ctx.routes.get("segment-download"),
+                        ctx.sessionId, fileId, seg));
+                final HttpURLConnection http = (HttpURLConnection) u.openConnection();
+                setVersion(http,ctx);
+                try {
+                    final int code = http.getResponseCode();
+                    if (code != HttpURLConnection.HTTP_OK)
+                        throw TeleportaError.withError(0x7002, code);
+                    // segment must fill exactly its part of file
+                    final SegmentOutputStream sout = new SegmentOutputStream(fout, offset,
+                            Math.min(size, total - offset));
+                    try (InputStream in = http.getInputStream()) {
+                        tc.decryptSegment(key, iv, seg, segments, in, sout, compressed, chunked);
+                    }
+                    sout.checkComplete();
+                } finally {
+                    release(http);
+                }
+            });
+            if (fout.size() != total)
+                throw TeleportaError.withError(0x7286, fileId, fout.size(), total);
+        }
+    }
+    /**
+     * Task, processing single segment
+     */
+    interface SegmentTask {
+        void run(int seg) throws IOException;
+    }
+    /**
+     * Runs task for each segment, using parallel connections
+     * @param segments
+     *          number of segments
+     * @param task
+     *          task to run
+     * @throws IOException
+     *          if any of segments failed
+     */
+    private void runSegments(int segments, SegmentTask task) throws IOException {
+        final ExecutorService pool = newWorkers(Math.max(1, Math.min(segmentStreams, segments)));
+        try {
+            final List<Future<?>> results = new ArrayList<>(segments);
+            for (int i = 0; i < segments; i++) {
+                final int seg = i;
+                results.add(pool.submit(() -> {
+                    task.run(seg);
+                    return null;
+                }));
+            }
+            for (Future<?> f : results)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    /**
+     * Reads part of file, with positional reads. Channel could be shared between threads.
+     */
+    static class SegmentInputStream extends InputStream {
+        private final FileChannel ch;
+        private final long end;
+        private long pos;
+        SegmentInputStream(FileChannel ch, long pos, long len) {
+            this.ch = ch;
+            this.pos = pos;
+            this.end = pos + len;
+        }
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos >= end)
+                return -1;
+            final int n = ch.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - pos)), pos);
+            if (n > 0)
+                pos += n;
+            return n;
+        }
+    }
+    /**
+     * Writes to file from specified offset, with positional writes.
+     * Channel could be shared between threads.
+     * Exactly specified number of bytes must be written, so segment could not
+     * overwrite next one or leave a hole in file.
+     */
+    static class SegmentOutputStream extends OutputStream {
+        private final FileChannel ch;
+        private final long start, end;
+        private long pos;
+        SegmentOutputStream(FileChannel ch, long pos, long len) {
+            this.ch = ch;
+            this.start = pos;
+            this.pos = pos;
+            this.end = pos + len;
+        }
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > end - pos)
+                throw TeleportaError.withError(0x7287, start, pos - start + len, end - start);
+            final ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining())
+                pos += ch.write(buf, pos);
+        }
+        /**
+         * Checks that whole segment was written
+         */
+        void checkComplete() {
+            if (pos != end)
+                throw TeleportaError.withError(0x7287, start, pos - start, end - start);
+        }
+    }
+    /**
+     * Uploads file with chunks. If upload fails, it's resumed on next attempt
+     * from last offset, committed by relay.
+     * @param file
+     *          source file
+     * @param receiverIds
+     *          remote portals ids
+     * @return
+     *      true if relay accepted file
+     * @throws IOException
+     *          on i/o errors
+     */
+    private boolean uploadResumable(File file, List<String> receiverIds) throws IOException {
+        final String receivers = String.join(",", receiverIds);
+        PreparedFile pf = uploads.get(file.getAbsolutePath());
+        long offset = 0;
+        if (pf != null) {
+            // continue only if file and relay's upload were not changed.
+            // Resumed upload is encrypted with same key and nonce, so content is compared too:
+            // file could be changed without changing size and time
+            offset = pf.matches(file, receivers) && Arrays.equals(pf.digest, digestOf(file)) ?
+                    uploadOffset(pf.uploadId) : -1;
+            if (offset < 0 || !pf.checkpoints.containsKey(offset)) {
+                pf = null;
+                offset = 0;
+            } else
+                LOG.info(TeleportaMessage.of("teleporta.system.message.resumingUpload",
+                        file.getAbsolutePath(), offset));
+        }
+        if (pf == null) {
+            // new key and nonce are generated there
+            pf = prepare(file, receiverIds, null, 0);
+            pf.resumable = true;
+            final Properties resp = uploadRequest("upload-start",
+                    "&to=" + receivers, null, 0);
+            pf.uploadId = resp != null ? resp.getProperty("upload") : null;
+            if (pf.uploadId == null)
+                return false;
+            pf.checkpoints.put(0L, 0L);
+            uploads.put(file.getAbsolutePath(), pf);
+        } else
+            // content is verified, so it's encrypted again with same key and nonce
+            pf.repeat = true;
+        // same stream is generated again, already committed part is skipped
+        final ChunkedUploadStream out = new ChunkedUploadStream(pf, offset);
+        try {
+            writeContainer(file, pf, false, out);
+            // upload is completed only there, not on close
+            out.complete();
+        } finally {
+            // keep state to resume, unless stream was changed or upload is done
+            if (out.done || out.changed)
+                uploads.remove(file.getAbsolutePath());
+        }
+        return true;
+    }
+    /**
+     * Calculates SHA-256 hash of file content
+     * @param file
+     *          source file
+     * @return
+     *      hash
+     * @throws IOException
+     *          on i/o errors
+     */
+    private byte[] digestOf(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return tc.digest(in);
+        }
+    }
+    /**
+     * Get offset, committed by relay for upload
+     * @param uploadId
+     *          upload id
+     * @return
+     *      committed offset or -1 if upload not found
+     * @throws IOException
+     *          on i/o errors
+     */
+    private long uploadOffset(String uploadId) throws IOException {
+        final Properties resp = uploadRequest("upload-status",
+                "&upload=" + uploadId, null, 0);
+        return resp != null ? Long.parseLong(resp.getProperty("offset", "-1")) : -1;
+    }
+    /**
+     * Sends request to relay's upload endpoint
+     * @param part
+     *          endpoint name
+     * @param params
+     *          additional query params
+     * @param data
+     *          chunk data, if null - GET request is sent
+     * @param len
+     *          chunk length
+     * @return
+     *      relay response or null, if request failed
+     * @throws IOException
+     *          on i/o errors
+     */
+    private Properties uploadRequest(String part, String params,
+                                     byte[] data, int len) throws IOException {
+        final URL u = new URL(ctx.relayUrl, String.format("%s/%s?from=%s%s",
+                ctx.relayUrl.getPath(),
+                ctx.routes.get(part),
+                ctx.sessionId, params));
+        final HttpURLConnection http = (HttpURLConnection) u.openConnection();
+        setVersion(http,ctx);
+        if (data != null || "upload-start".equals(part)) {
+            http.setRequestMethod("POST");
+            http.setDoOutput(true);
+            http.setFixedLengthStreamingMode(len);
+            try (OutputStream out = http.getOutputStream()) {
+                if (data != null)
+                    out.write(data, 0, len);
+            } catch (IOException | RuntimeException e) {
+                http.disconnect();
+                throw e;
+            }
+        }
+        try {
+            final int code = http.getResponseCode();
             if (code != HttpURLConnection.HTTP_OK) {
                 LOG.warning(TeleportaError.messageFor(0x7002, code));
-                try {
-                    http.disconnect();
-                } catch (Exception ignore) {}
-                return;
+                return null;
             }
-            if (file.isFile() && !file.delete())
-                LOG.warning(TeleportaError.messageFor(0x6106,
-                        file.getAbsolutePath()));
-            else if (file.isDirectory())
-                deleteRecursive(file, true,null);
-
-            if (LOG.isLoggable(Level.FINE))
-                LOG.fine(TeleportaMessage.of("teleporta.system.message.fileSent",
-                        file.getAbsolutePath()));
-
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-            // Error creating session key
-            throw TeleportaError.withError(0x7213,e);
+            final Properties resp = new Properties();
+            try (InputStream in = http.getInputStream()) {
+                TeleCodec.load(resp, in, isBinary(http));
+            }
+            return resp;
         } finally {
-            ctx.processingFiles.remove(file.getAbsolutePath());
-            http.disconnect();
+            release(http);
+        }
+    }
+    /**
+     * Sends written data to relay with chunks.
+     * First 'offset' bytes are already on relay, so they are only checked, but not sent.
+     * Closing does nothing, because failed upload must not be completed.
+     */
+    class ChunkedUploadStream extends OutputStream {
+        private final PreparedFile pf;
+        private final long skip; // already committed offset
+        private final byte[] buf = new byte[uploadChunk];
+        private final CRC32 crc = new CRC32();
+        private long pos; // stream position
+        private int filled;
+        boolean done, // if true - relay accepted last chunk
+                changed; // if true - generated stream differs from committed one
+        ChunkedUploadStream(PreparedFile pf, long skip) {
+            this.pf = pf;
+            this.skip = skip;
+        }
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // committed part: just calculate checksum
+            if (pos < skip) {
+                final int n = (int) Math.min(len, skip - pos);
+                crc.update(b, off, n);
+                pos += n;
+                off += n;
+                len -= n;
+                if (pos == skip && pf.checkpoints.get(skip) != crc.getValue()) {
+                    changed = true;
+                    throw TeleportaError.withError(0x7280, skip);
+                }
+            }
+            while (len > 0) {
+                final int n = Math.min(len, buf.length - filled);
+                System.arraycopy(b, off, buf, filled, n);
+                filled += n;
+                off += n;
+                len -= n;
+                if (filled == buf.length)
+                    sendChunk(false);
+            }
+        }
+        /**
+         * Sends last chunk, so relay completes upload
+         * @throws IOException
+         *          on i/o errors
+         */
+        void complete() throws IOException {
+            if (pos < skip) {
+                changed = true;
+                throw TeleportaError.withError(0x7280, skip);
+            }
+            sendChunk(true);
+            done = true;
+        }
+        private void sendChunk(boolean last) throws IOException {
+            final Properties resp = uploadRequest("upload-chunk",
+                    String.format("&upload=%s&offset=%d%s", pf.uploadId, pos,
+                            last ? "&last=true" : ""), buf, filled);
+            if (resp == null)
+                throw new IOException(TeleportaError.messageFor(0x7281, pf.uploadId, pos));
+            crc.update(buf, 0, filled);
+            pos += filled;
+            filled = 0;
+            // remember checksum, to check same stream on resume
+            pf.checkpoints.put(pos, crc.getValue());
+            if (LOG.isLoggable(Level.FINE))
+                LOG.fine(TeleportaMessage.of("teleporta.system.message.chunkUploaded",
+                        pf.uploadId, pos));
         }
     }
 
@@ -666,7 +1727,7 @@ public class TeleportaClient extends AbstractClient{
         if (LOG.isLoggable(Level.FINE))
             LOG.fine(TeleportaMessage.of("teleporta.system.message.downloadingClipboard"));
 
-        final String part = decodeUrl(ctx.relayUrl, "cb-download");
+        final String part = ctx.routes.get("cb-download");
         final URL u = new URL(ctx.relayUrl, String.format("%s/%s?to=%s",
                 ctx.relayUrl.getPath(),
                 part,
@@ -677,21 +1738,17 @@ public class TeleportaClient extends AbstractClient{
         int code = http.getResponseCode(); // execute request
         if (code != HttpURLConnection.HTTP_OK) {
             LOG.warning(TeleportaError.messageFor(0x7002, code));
-            http.disconnect();
+            release(http);
             return;
         }
         try (BufferedInputStream bin = new BufferedInputStream(http.getInputStream(), 4096);
              ByteArrayOutputStream bout = new ByteArrayOutputStream()) {
             // check for packet header
-            if (!checkPacketHeader(bin,true)) {
-                http.disconnect();
+            if (!checkPacketHeader(bin,true))
                 return;
-            }
             final SecretKeySpec rkey = readSessionKey(bin, false,ctx.keyPair.getPrivate());
-            if (rkey == null) {
-                http.disconnect();
+            if (rkey == null)
                 return;
-            }
             tc.decryptData(rkey, bin, bout);
             // note: we still use 1.8 API there! don't replace with StandardCharsets.UTF_8
             clip.setClipboard(bout.toString("utf-8"));
@@ -699,8 +1756,9 @@ public class TeleportaClient extends AbstractClient{
                 LOG.fine(TeleportaMessage.of("teleporta.system.message.clipboardUpdated",
                         bout.size()));
             }
+        } finally {
+            release(http);
         }
-        http.disconnect();
     }
 
     /**
@@ -713,7 +1771,14 @@ public class TeleportaClient extends AbstractClient{
         if (LOG.isLoggable(Level.FINE))
             LOG.fine(TeleportaMessage.of("teleporta.system.message.downloadingFile",fileId));
 
-        final String part = decodeUrl(ctx.relayUrl, "file-download");
+        // if relay keeps files until delivery is confirmed, received data is stored
+        // in partial file, so broken download continues from last received byte
+        final File partial = hasFeature(ctx.relayFeatures, FEATURE_RESUME) ?
+                new File(new File(ctx.storageDir, PARTIAL_FOLDER),
+                        String.format("f_%s.part", fileId)) : null;
+        final long offset = partial != null && partial.exists() ? partial.length() : 0;
+
+        final String part = ctx.routes.get("file-download");
         final URL u = new URL(ctx.relayUrl, String.format("%s/%s?to=%s&file=%s",
                 ctx.relayUrl.getPath(),
                 part,
@@ -721,23 +1786,79 @@ public class TeleportaClient extends AbstractClient{
         final URLConnection con = u.openConnection();
         final HttpURLConnection http = (HttpURLConnection) con;
         setVersion(con,ctx);
+        if (offset > 0)
+            http.setRequestProperty("Range", String.format("bytes=%d-", offset));
         final int code = http.getResponseCode();
+        final boolean resumed = code == HttpURLConnection.HTTP_PARTIAL;
         // check for basic HTTP codes first
-        if (code != HttpURLConnection.HTTP_OK) {
+        if (code != HttpURLConnection.HTTP_OK && !resumed) {
             // Unexpected relay response
             LOG.warning(TeleportaError.messageFor(0x7002, code));
-            http.disconnect();
+            release(http);
+            // file is gone or partial data does not match it anymore
+            if (partial != null && (code == HttpURLConnection.HTTP_BAD_REQUEST || code == 416))
+                deletePartial(partial);
             return;
         }
-        // content size
-        final long fsize = http.getContentLengthLong();
+        // content size, not known if file is still being uploaded
+        final long length = http.getContentLengthLong(),
+                fsize = length < 0 ? -1 : length + (resumed ? offset : 0);
         if (LOG.isLoggable(Level.FINE))
             LOG.fine(String.format("File %s ,size: %d",fileId,fsize));
+        if (resumed)
+            LOG.info(TeleportaMessage.of("teleporta.system.message.resumingDownload",
+                    fileId, offset));
+        if (partial != null)
+            TeleportaCommons.checkCreateFolder(partial.getParentFile());
 
         final Properties props = new Properties();
+        final PartialDownloadStream in;
+        try {
+            in = new PartialDownloadStream(http.getInputStream(), partial,
+                    resumed ? offset : 0, fsize);
+        } catch (IOException e) {
+            http.disconnect();
+            throw e;
+        }
+        try {
+            unpackFile(fileId, in, fsize, props);
+        } catch (IOException | RuntimeException e) {
+            // only broken file is confirmed, it will not become better.
+            // Network and disk errors are retried, segments are downloaded
+            // with separate connections, so any error there is retried too
+            if (partial == null || in.networkError || props.containsKey("segments")
+                    || !isBrokenData(e))
+                throw e;
+            deletePartial(partial);
+            ackFile(fileId);
+            throw e;
+        } finally {
+            // drain rest of container (zip directory), then close partial file
+            release(http);
+            in.close();
+        }
+        if (partial != null) {
+            deletePartial(partial);
+            ackFile(fileId);
+        }
+    }
+    /**
+     * Unpacks and decrypts received file container
+     * @param fileId
+     *          file id
+     * @param in
+     *          container data
+     * @param fsize
+     *          container size, -1 if not known
+     * @param props
+     *          empty properties, filled with file metadata
+     * @throws IOException
+     *          on i/o errors
+     */
+    private void unpackFile(String fileId, InputStream in, long fsize,
+                            Properties props) throws IOException {
         // we do unpack & decrypt on the fly, without any temp files
-        try (InputStream in  = http.getInputStream();
-                CountingZipInputStream zin = new CountingZipInputStream(fileId,fsize,in)) {
+        try (CountingZipInputStream zin = new CountingZipInputStream(fileId,fsize,in)) {
             // check for file magic, throws error if not found
             checkFileHeader(in);
 
@@ -752,11 +1873,15 @@ public class TeleportaClient extends AbstractClient{
                 // will be read *before* metadata
                 if (props.isEmpty() && ENTRY_META.equalsIgnoreCase(ze.getName())) {
                     props.load(zin);
+                } else if (props.isEmpty() && ENTRY_META_BIN.equalsIgnoreCase(ze.getName())) {
+                    TeleCodec.load(props, zin, true);
                 } else if (ENTRY_DATA.equalsIgnoreCase(ze.getName())) {
                     final String from = props.getProperty("from"), // sender id
                             name = props.getProperty("name"), // original file name
                             type = props.getProperty("type"), // content type (file or folder)
-                            fileKey = props.getProperty("fileKey"); // unique file key
+                            // unique file key, could be wrapped for many receivers
+                            fileKey = props.getProperty("fileKey." + ctx.sessionId,
+                                    props.getProperty("fileKey"));
                     if (!ctx.portals.containsKey(from)) {
                         // Portal not found
                         LOG.warning(TeleportaError.messageFor(0x6108, from));
@@ -787,40 +1912,414 @@ public class TeleportaClient extends AbstractClient{
                     final byte[] decKey = tc.decryptKey(fromHex(fileKey),
                             ctx.keyPair.getPrivate());
                     final SecretKeySpec rkey = new SecretKeySpec(decKey, "AES");
-                    // check content type
-                    switch (type) {
-                        // if its folder
-                        case "folder": {
-                            // note on extension
-                            final File outz = new File(f, name );
-                            tc.decryptFolder(rkey, zin, outz,fsize);
-                            break;
-                        }
-                        // if content is file
-                        case "file": {
-                            // just decrypt to target file
-                            final boolean renameWithPercent =
-                                    Boolean.parseBoolean(System.getProperty("renameWithPercent", "true"));
-
-                            try (OutputStream fout = renameWithPercent ?
-                                    new ReplacingFileOutputStream(out,fsize) :
-                                    new FileOutputStream(out)) {
-                                tc.decryptData(rkey, zin, fout);
+                    // content could be stored separately, in relay's blob store
+                    final String blob = props.getProperty("blob");
+                    final HttpURLConnection bhttp = blob != null ? openBlob(blob, fileId) : null;
+                    if (blob != null && bhttp == null)
+                        continue;
+                    final long dsize = bhttp != null ? bhttp.getContentLengthLong() : fsize;
+                    // blob is read without partial file, but connection errors must be
+                    // detected same way, so file is not confirmed
+                    final InputStream data = bhttp != null ? new PartialDownloadStream(
+                            bhttp.getInputStream(), null, 0, dsize) : zin;
+                    try {
+                        // check content type
+                        switch (type) {
+                            // if its folder
+                            case "folder": {
+                                // note on extension
+                                final File outz = new File(f, name );
+                                tc.decryptFolder(rkey, data, outz, dsize);
+                                break;
+                            }
+                            // if content is file
+                            case "file": {
+                                // just decrypt to target file
+                                final boolean renameWithPercent =
+                                        Boolean.parseBoolean(System.getProperty("renameWithPercent", "true"));
+
+                                try {
+                                    if (props.containsKey("segments"))
+                                        // content is split to segments, downloaded in parallel
+                                        downloadSegments(fileId, props, rkey, out);
+                                    else
+                                        try (OutputStream fout = renameWithPercent ?
+                                                new ReplacingFileOutputStream(out, dsize) :
+                                                new FileOutputStream(out)) {
+                                            tc.decryptData(rkey, data, fout,
+                                                    FEATURE_DEFLATE.equals(props.getProperty("compression")),
+                                                    FEATURE_GCM.equals(props.getProperty("cipher")));
+                                        }
+                                } catch (IOException | RuntimeException e) {
+                                    // incomplete file must not stay under original name,
+                                    // it will be decrypted again on next attempt
+                                    if (out.exists() && !out.delete())
+                                        LOG.warning(TeleportaError.messageFor(0x6106,
+                                                out.getAbsolutePath()));
+                                    throw e;
+                                }
+                                break;
                             }
-                            break;
                         }
+                    } finally {
+                        if (bhttp != null)
+                            release(bhttp);
                     }
                     if (LOG.isLoggable(Level.FINE))
                         LOG.fine(TeleportaMessage.of("teleporta.system.message.fileDownloaded",
-                                out.getAbsolutePath()));
+                                out.getAbsolutePath(), out.length()));
 
                 }
             }
+        }
+    }
+    /**
+     * Unpacks file, embedded into poll response.
+     * Delivery is confirmed with next poll, without separate request
+     * @param fileId
+     *          file id
+     * @param data
+     *          file container
+     * @throws IOException
+     *          on i/o errors
+     */
+    private void receiveInline(String fileId, byte[] data) throws IOException {
+        if (LOG.isLoggable(Level.FINE))
+            LOG.fine(TeleportaMessage.of("teleporta.system.message.inlineFile",
+                    fileId, data.length));
+        final Properties props = new Properties();
+        try {
+            unpackFile(fileId, new ByteArrayInputStream(data), data.length, props);
+        } catch (IOException | RuntimeException e) {
+            // only broken file is confirmed, same as for usual download:
+            // blob network errors, disk errors and segments are retried with next poll
+            if (!props.containsKey("segments") && isBrokenData(e))
+                delivered.add(fileId);
+            throw e;
+        }
+        delivered.add(fileId);
+    }
+    /**
+     * Takes delivery confirmations, which should be sent to relay.
+     * If request fails, they must be returned back
+     * @param max
+     *          max number of confirmations
+     * @return
+     *      delivered file ids
+     */
+    private List<String> takeAcks(int max) {
+        final List<String> acks = new ArrayList<>();
+        for (String id; acks.size() < max && (id = delivered.poll()) != null; )
+            acks.add(id);
+        return acks;
+    }
+    /**
+     * Marks file as downloading
+     * @param fileId
+     *          file id
+     * @return
+     *      false if file is already downloading or its delivery was confirmed
+     */
+    private synchronized boolean startDownload(String fileId) {
+        return !confirmed.contains(fileId) && ctx.downloadingFiles.add(fileId);
+    }
+    /**
+     * Stops tracking of files, which delivery is confirmed by relay.
+     * Poll or batch response, requested before confirmation, could still list them,
+     * so they are remembered and skipped
+     * @param acks
+     *          confirmed file ids
+     */
+    private synchronized void confirm(List<String> acks) {
+        for (String id : acks)
+            if (confirmed.add(id))
+                confirmedOrder.add(id);
+        while (confirmedOrder.size() > MAX_CONFIRMED)
+            confirmed.remove(confirmedOrder.poll());
+        ctx.downloadingFiles.removeAll(acks);
+    }
+    /**
+     * Downloads pending files with batch requests, till relay has them
+     */
+    private void drainBacklog() {
+        try {
+            // stop if nothing was received, all rest could be downloading already
+            for (int n; pollRunning && (n = downloadBatch()) > 0; ) {
+                if (LOG.isLoggable(Level.FINE))
+                    LOG.fine(TeleportaMessage.of("teleporta.system.message.batchReceived", n));
+            }
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
         } finally {
+            batchRunning.set(false);
+        }
+    }
+    /**
+     * Downloads many pending files with single request.
+     * Relay sends files one after another: [id][length][file container], then empty id.
+     * Delivery of received files is confirmed with next request
+     * @return
+     *      number of received files
+     * @throws IOException
+     *          on network errors
+     */
+    private int downloadBatch() throws IOException {
+        final List<String> acks = takeAcks(Integer.MAX_VALUE);
+        final byte[] body = String.join(",", acks).getBytes(StandardCharsets.US_ASCII);
+        final URL u = new URL(ctx.relayUrl, String.format("%s/%s?to=%s&limit=%d",
+                ctx.relayUrl.getPath(),
+                ctx.routes.get("batch-download"),
+                ctx.sessionId, batchDownload));
+        final HttpURLConnection http = (HttpURLConnection) u.openConnection();
+        setVersion(http,ctx);
+        http.setRequestMethod("POST");
+        http.setDoOutput(true);
+        http.setFixedLengthStreamingMode(body.length);
+        final int code;
+        try {
+            try (OutputStream out = http.getOutputStream()) {
+                out.write(body);
+            }
+            code = http.getResponseCode();
+        } catch (IOException | RuntimeException e) {
             http.disconnect();
+            // will be sent again with next request
+            delivered.addAll(acks);
+            throw e;
+        }
+        // relay got confirmations, so files could not be listed again
+        confirm(acks);
+        if (code != HttpURLConnection.HTTP_OK) {
+            LOG.warning(TeleportaError.messageFor(0x7002, code));
+            release(http);
+            return 0;
+        }
+        int received = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(http.getInputStream()))) {
+            for (String id; !(id = in.readUTF()).isEmpty(); ) {
+                final BatchEntryStream entry = new BatchEntryStream(in, in.readLong());
+                // file is downloading with separate request or already received
+                if (!startDownload(id)) {
+                    entry.close();
+                    continue;
+                }
+                final Properties props = new Properties();
+                try {
+                    unpackFile(id, entry, entry.length, props);
+                } catch (IOException | RuntimeException e) {
+                    // same rules as for usual download: only broken file is confirmed,
+                    // network errors (batch or blob), disk errors and segments are retried
+                    if (entry.networkError || props.containsKey("segments")
+                            || !isBrokenData(e)) {
+                        ctx.downloadingFiles.remove(id);
+                        // rest of batch response could not be read
+                        if (entry.networkError)
+                            throw e;
+                        LOG.log(Level.WARNING, e.getMessage(), e);
+                        continue;
+                    }
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+                delivered.add(id);
+                received++;
+            }
+        } finally {
+            release(http);
+        }
+        return received;
+    }
+    /**
+     * Single file, inside batch response.
+     * Closing skips unread data, so next file could be read.
+     */
+    static class BatchEntryStream extends InputStream {
+        private final InputStream in; // batch response
+        final long length; // file container length
+        private long left; // bytes left to read
+        boolean networkError; // true if read from relay failed
+        BatchEntryStream(InputStream in, long length) {
+            this.in = in;
+            this.length = length;
+            this.left = length;
+        }
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left <= 0)
+                return -1;
+            final int n;
+            try {
+                n = in.read(b, off, (int) Math.min(len, left));
+            } catch (IOException e) {
+                networkError = true;
+                throw e;
+            }
+            // connection closed before all data was sent
+            if (n < 0) {
+                networkError = true;
+                throw new EOFException();
+            }
+            left -= n;
+            return n;
+        }
+        @Override
+        public void close() throws IOException {
+            final byte[] buf = new byte[8192];
+            while (left > 0)
+                read(buf, 0, buf.length);
+        }
+    }
+    /**
+     * Confirms file delivery, so relay could remove it
+     * @param fileId
+     *          file id
+     * @throws IOException
+     *          on network errors
+     */
+    private void ackFile(String fileId) throws IOException {
+        final URL u = new URL(ctx.relayUrl, String.format("%s/%s?to=%s&file=%s",
+                ctx.relayUrl.getPath(),
+                ctx.routes.get("file-ack"),
+                ctx.sessionId, fileId));
+        final HttpURLConnection http = (HttpURLConnection) u.openConnection();
+        setVersion(http,ctx);
+        try {
+            final int code = http.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK)
+                LOG.warning(TeleportaError.messageFor(0x7002, code));
+        } finally {
+            release(http);
+        }
+    }
+    /**
+     * Checks if error was caused by broken file data: decryption or format error.
+     * Network, disk and other i/o errors are not, file could be received on next attempt
+     * @param e
+     *          error
+     * @return
+     *      true if file data is broken
+     */
+    static boolean isBrokenData(Exception e) {
+        // unexpected runtime errors come from malformed metadata
+        if (e instanceof RuntimeException && !(e instanceof TeleportationException)
+                && !(e instanceof UncheckedIOException))
+            return true;
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof GeneralSecurityException || t instanceof ZipException)
+                return true;
+            if (t instanceof TeleportationException)
+                switch (((TeleportationException) t).getCode()) {
+                    case 0x7012: // incorrect IV
+                    case 0x7018: // incorrect file header
+                    case 0x7277: // malformed binary message
+                    case 0x7283: // incorrect chunk length
+                    case 0x7286: // incorrect file size
+                    case 0x7287: // incorrect segment length
+                        return true;
+                }
+        }
+        return false;
+    }
+    private static void deletePartial(File partial) {
+        if (partial.exists() && !partial.delete())
+            LOG.warning(TeleportaError.messageFor(0x6106, partial.getAbsolutePath()));
+    }
+    /**
+     * Reads file data from relay and stores received data to partial file.
+     * If download is resumed, data received before is read from partial file first.
+     */
+    static class PartialDownloadStream extends InputStream {
+        private final InputStream net; // data from relay
+        private final OutputStream out; // partial file, null if resume is not supported
+        private final long total; // expected data length
+        private long received; // data length, received from relay and read before
+        private InputStream local; // data received before
+        boolean networkError; // true if read from relay failed
+        PartialDownloadStream(InputStream net, File partial,
+                              long offset, long total) throws IOException {
+            this.net = net;
+            this.total = total;
+            this.received = offset;
+            this.local = offset > 0 ? new FileInputStream(partial) : null;
+            this.out = partial != null ? new FileOutputStream(partial, offset > 0) : null;
+        }
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (local != null) {
+                final int n = local.read(b, off, len);
+                if (n >= 0)
+                    return n;
+                local.close();
+                local = null;
+            }
+            final int n;
+            try {
+                n = net.read(b, off, len);
+            } catch (IOException e) {
+                networkError = true;
+                throw e;
+            }
+            // connection closed before all data was sent
+            if (n < 0 && total > 0 && received < total) {
+                networkError = true;
+                throw new EOFException();
+            }
+            if (n > 0) {
+                received += n;
+                if (out != null)
+                    out.write(b, off, n);
+            }
+            return n;
+        }
+        @Override
+        public void close() throws IOException {
+            try {
+                if (local != null)
+                    local.close();
+                if (out != null)
+                    out.close();
+            } finally {
+                net.close();
+            }
         }
     }
 
+    /**
+     * Opens download of file content from relay's blob store
+     * @param blob
+     *          blob hash
+     * @param fileId
+     *          file id, which references this blob
+     * @return
+     *      opened connection or null, if blob is not available
+     * @throws IOException
+     *          on i/o errors
+     */
+    private HttpURLConnection openBlob(String blob, String fileId) throws IOException {
+        final URL u = new URL(ctx.relayUrl, String.format("%s/%s?to=%s&file=%s&blob=%s",
+                ctx.relayUrl.getPath(),
+                ctx.routes.get("blob-download"),
+                ctx.sessionId, fileId, blob));
+        final HttpURLConnection http = (HttpURLConnection) u.openConnection();
+        setVersion(http,ctx);
+        final int code = http.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            LOG.warning(TeleportaError.messageFor(0x7002, code));
+            release(http);
+            return null;
+        }
+        return http;
+    }
     /**
      * Regsters portal on remote portal
      *
@@ -828,7 +2327,7 @@ public class TeleportaClient extends AbstractClient{
      * @throws IOException on network errors
      */
     public boolean register() throws IOException {
-        final String part = decodeUrl(ctx.relayUrl, "register");
+        final String part = ctx.routes.get("register");
         // note:  existing path will be overwritten
         final URL u = new URL(ctx.relayUrl, String.format("%s/%s", ctx.relayUrl.getPath(), part));
         // try name from environment
@@ -847,6 +2346,10 @@ public class TeleportaClient extends AbstractClient{
                 toHex(ctx.keyPair.getPublic().getEncoded(), 0, 0));
         if (ctx.sessionId!=null)
             props.setProperty("currentId", ctx.sessionId);
+        // ask relay for symmetric session key
+        props.setProperty("features", String.join(",",
+                FEATURE_SESSION, FEATURE_CODEC, FEATURE_DEFLATE, FEATURE_CAS, FEATURE_RESUME,
+                FEATURE_SEGMENTS, FEATURE_LIVE, FEATURE_INLINE, FEATURE_BATCH, FEATURE_KEYS) + (chunkedCipher ? "," + FEATURE_GCM : ""));
 
         boolean privateRelay = false;
         final String relayKey;
@@ -905,13 +2408,15 @@ public class TeleportaClient extends AbstractClient{
             if (LOG.isLoggable(Level.FINE))
                 LOG.fine(TeleportaError.messageFor(0x7002,code));
 
-            http.disconnect();
+            release(http);
             return false;
         }
         // parse response from relay (also based on java.util.Properties)
         final Properties resp = new Properties();
         try (InputStream in = http.getInputStream()) {
-            resp.load(in);
+            TeleCodec.load(resp, in, isBinary(http));
+        } finally {
+            release(http);
         }
         // load and display 'Message of the day'
         final String motd = resp.getProperty("motd",null);
@@ -920,6 +2425,15 @@ public class TeleportaClient extends AbstractClient{
 
         // reflect with context
         ctx.sessionId = resp.getProperty("id", null);
+        ctx.relayFeatures = resp.getProperty("features", null);
+        // relay could be restarted, so full portals list is required
+        ctx.portalsVersion = -1;
+        // session key is wrapped with our public key, so only we could decrypt it
+        final String sessionKey = resp.getProperty("sessionKey", null),
+                sessionKeyId = resp.getProperty("sessionKeyId", null);
+        ctx.session = sessionKey != null && sessionKeyId != null ?
+                new SessionKey(sessionKeyId, new SecretKeySpec(tc.decryptKey(fromHex(sessionKey),
+                        ctx.keyPair.getPrivate()), "AES")) : null;
         // if relay is private - just copy already loaded key to context,
         // because private relay will not publish own public key
         if (privateRelay)
@@ -939,7 +2453,6 @@ public class TeleportaClient extends AbstractClient{
             TeleportaError.printErr(0x7211, ctx.relayUrl);
             return false;
         }
-        http.disconnect();
         LOG.info(TeleportaMessage.of("teleporta.system.message.connectedToRelay"));
         return true;
     }
@@ -954,10 +2467,15 @@ public class TeleportaClient extends AbstractClient{
         if (LOG.isLoggable(Level.FINE))
             LOG.fine(TeleportaMessage.of("teleporta.system.message.sendNonDeliveredFiles"));
 
-        for (String n : ctx.portalNames.keySet()) {
-            // get remote portal's id
-            final String id = ctx.portalNames.get(n);
+        final List<String> folders = new ArrayList<>(ctx.portalNames.keySet());
+        if (isBroadcast(broadcastFolder))
+            folders.add(broadcastFolder);
+        for (String n : folders) {
+            // get remote portals ids
+            final List<String> ids = receiversOf(n);
             final File f = new File(outputDir, n);
+            if (ids == null)
+                continue;
             // if there is *still* no watched folder for this target portal - ignore
             if (!f.exists() || !f.isDirectory() || !f.canRead())
                 continue;
@@ -981,7 +2499,7 @@ public class TeleportaClient extends AbstractClient{
 
                     es.submit(() -> {
                         try {
-                            sendFile(ff, id);
+                            sendFile(ff, ids);
                         } catch (IOException ee) {
                             LOG.warning(TeleportaError.messageFor(0x7006,ee));
                         }
@@ -992,5 +2510,34 @@ public class TeleportaClient extends AbstractClient{
             }
         }
     }
+    /**
+     * Checks if outgoing folder is used to send files to all portals
+     * @param folder
+     *          outgoing folder name
+     * @return
+     *      true if folder is broadcast folder and there is no portal with same name
+     */
+    private boolean isBroadcast(String folder) {
+        return !broadcastFolder.isEmpty() && broadcastFolder.equals(folder)
+                && !ctx.portalNames.containsKey(folder);
+    }
+    /**
+     * Get receivers for outgoing folder
+     * @param folder
+     *          outgoing folder name
+     * @return
+     *      remote portals ids or null, if there is no such portal
+     */
+    private List<String> receiversOf(String folder) {
+        final String id = ctx.portalNames.get(folder);
+        if (id != null)
+            return Collections.singletonList(id);
+        if (!isBroadcast(folder))
+            return null;
+        // all portals, except this one
+        final List<String> ids = new ArrayList<>(ctx.portals.keySet());
+        ids.remove(ctx.sessionId);
+        return ids;
+    }
 
 }
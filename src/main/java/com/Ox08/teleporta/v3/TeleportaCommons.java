@@ -7,6 +7,8 @@ import javax.crypto.spec.PBEKeySpec;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
@@ -15,8 +17,20 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 import java.util.logging.*;
+import java.util.zip.Deflater;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -28,14 +42,264 @@ import java.util.zip.ZipOutputStream;
  */
 public class TeleportaCommons {
     private final static Logger LOG = Logger.getLogger("TC");
+    // size of buffer, used for file transfers on relay side
+    static final int TRANSFER_BUFFER_SIZE = 1024 *
+            Integer.parseInt(System.getProperty("transferBuffer", "256"));
+    // idle transfer buffers, reused to avoid allocation for each file. Shared by all threads:
+    // virtual threads are not reused, so thread-local buffers would be allocated for each task
+    private static final BlockingQueue<ByteBuffer> TRANSFER_BUFFERS =
+            new ArrayBlockingQueue<>(32);
+    // optional protocol features, advertised by portal on register
+    static final String FEATURE_SESSION = "session", // symmetric session key for polls
+            FEATURE_CODEC = "codec" + TeleCodec.VERSION, // binary codec for file metadata
+            FEATURE_DEFLATE = "deflate", // file content could be compressed before encryption
+            FEATURE_FANOUT = "fanout", // relay accepts single upload for many portals
+            FEATURE_KEYS = "keys", // portal finds own file key among keys for many receivers
+            FEATURE_CAS = "cas", // file content could be stored in relay's blob store
+            FEATURE_RESUME = "resume", // relay accepts resumable uploads with chunks
+            FEATURE_SEGMENTS = "segments", // large file is split to segments, sent in parallel
+            FEATURE_GCM = "gcm", // file content is encrypted with AES-GCM by chunks
+            FEATURE_LIVE = "live", // file could be downloaded while it's being uploaded
+            FEATURE_INLINE = "inline", // small files are embedded into poll response
+            FEATURE_BATCH = "batch"; // many files are downloaded with single request
+    // relay endpoints, used by portals
+    static final String[] ENDPOINTS = {"register", "poll", "get-portals",
+            "file-upload", "file-download", "file-ack", "cb-upload", "cb-download",
+            "upload-start", "upload-status", "upload-chunk",
+            "segment-upload", "segment-download",
+            "blob-check", "blob-upload", "blob-download", "batch-download"};
+    // run blocking tasks on virtual threads, if supported by JVM (Java 21+)
+    private static final boolean VIRTUAL_THREADS =
+            Boolean.parseBoolean(System.getProperty("virtualThreads", "true"));
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // compression probe: sample size and minimal ratio to make compression worth it
+    private static final int PROBE_SAMPLE = 64 * 1024,
+            PROBE_MIN_SIZE = 1024, PROBE_RATIO_PERCENT = 90;
 
+    /**
+     * Relay endpoints, derived from seed in relay url.
+     * Derivation is slow (PBKDF2), so it's done once for each relay url.
+     */
+    static class RelayRoutes {
+        private final URL url;
+        private final Map<String, String> parts = new ConcurrentHashMap<>();
+        RelayRoutes(URL url) {
+            this.url = url;
+            for (String part : ENDPOINTS)
+                parts.put(part, decodeUrl(url, part));
+        }
+        /**
+         * @param part
+         *          human-readable endpoint name
+         * @return
+         *      derived endpoint part of url
+         */
+        String get(String part) {
+            return parts.computeIfAbsent(part, p -> decodeUrl(url, p));
+        }
+    }
     // DTO to store portal details
     public static class RegisteredPortal {
         final String name; // unique portal name (human readable)
-                String publicKey;  // portal's public key
+        volatile String publicKey,  // portal's public key, could be replaced on re-register
+                features; // optional features, supported by portal. Could be null
         RegisteredPortal(String name, String publicKey) {
+            this(name, publicKey, null);
+        }
+        RegisteredPortal(String name, String publicKey, String features) {
             this.name = name;
             this.publicKey = publicKey;
+            this.features = features;
+        }
+    }
+    /**
+     * Creates executor for blocking i/o tasks.
+     * On Java 21+ each task gets own virtual thread and number of running tasks
+     * is limited by semaphore. On older JVMs - fixed pool of threads.
+     * Virtual threads are found by reflection, so sources are still compatible with Java 8.
+     * @param limit
+     *          max number of tasks, running at once
+     * @return
+     *      executor
+     */
+    static ExecutorService newWorkers(int limit) {
+        if (VIRTUAL_THREADS)
+            try {
+                return new LimitedExecutor((ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null), limit);
+            } catch (ReflectiveOperationException ignored) {
+                // JVM without virtual threads
+            }
+        return Executors.newFixedThreadPool(limit);
+    }
+    /**
+     * Executor, which limits number of running tasks by semaphore.
+     * Tasks are waiting for permit inside own (virtual) thread, so submit never blocks.
+     */
+    static class LimitedExecutor extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final Semaphore permits;
+        LimitedExecutor(ExecutorService delegate, int limit) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(limit);
+        }
+        @Override
+        public void execute(Runnable task) {
+            delegate.execute(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+    /**
+     * Symmetric key, shared between relay and portal after registration.
+     * Used to encrypt poll and portal list responses, without RSA on each request.
+     * Immutable, so could be replaced atomically.
+     */
+    static class SessionKey {
+        final String id; // key id, portal sends it back to show which key it has
+        final SecretKey key; // AES key
+        final long created; // creation time, used for rekeying
+        SessionKey(String id, SecretKey key) {
+            this.id = id;
+            this.key = key;
+            this.created = System.currentTimeMillis();
+        }
+    }
+    /**
+     * Checks if feature presents in comma-separated list
+     * @param features
+     *          list of features, could be null
+     * @param feature
+     *          feature to check
+     * @return
+     *      true if found
+     */
+    static boolean hasFeature(String features, String feature) {
+        if (features == null || features.isEmpty())
+            return false;
+        for (String f : features.split(","))
+            if (f.trim().equals(feature))
+                return true;
+        return false;
+    }
+    /**
+     * Builds response data with embedded files:
+     * [properties length][properties][files count], then [id][length][data] for each file
+     * @param props
+     *          stored properties
+     * @param files
+     *          file id to file container
+     * @return
+     *      response data
+     * @throws IOException
+     *          on i/o errors
+     */
+    static byte[] writeInlined(byte[] props, Map<String, byte[]> files) throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bout)) {
+            out.writeInt(props.length);
+            out.write(props);
+            out.writeInt(files.size());
+            for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().length);
+                out.write(e.getValue());
+            }
+        }
+        return bout.toByteArray();
+    }
+    /**
+     * Reads response data with embedded files
+     * @param data
+     *          response data
+     * @param files
+     *          map to put embedded files
+     * @return
+     *      stored properties
+     * @throws IOException
+     *          on i/o errors or malformed data
+     */
+    static byte[] readInlined(byte[] data, Map<String, byte[]> files) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            final byte[] props = readBlock(in, data.length);
+            for (int i = in.readInt(); i > 0; i--) {
+                final String id = in.readUTF();
+                files.put(id, readBlock(in, data.length));
+            }
+            return props;
+        }
+    }
+    private static byte[] readBlock(DataInputStream in, int max) throws IOException {
+        final int len = in.readInt();
+        if (len < 0 || len > max)
+            throw TeleportaError.withError(0x7277);
+        final byte[] b = new byte[len];
+        in.readFully(b);
+        return b;
+    }
+    /**
+     * Checks if file content is worth compressing.
+     * Deflates a sample from file's head and compares result size,
+     * so already compressed data (archives, media) is sent as is.
+     * @param file
+     *          source file
+     * @return
+     *      true if sample was compressed good enough
+     */
+    static boolean isCompressible(File file) {
+        if (file.length() < PROBE_MIN_SIZE)
+            return false;
+        final byte[] sample = new byte[(int) Math.min(file.length(), PROBE_SAMPLE)];
+        int len = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            for (int n; len < sample.length
+                    && (n = in.read(sample, len, sample.length - len)) > 0; )
+                len += n;
+        } catch (IOException e) {
+            // let main logic deal with it
+            return false;
+        }
+        final Deflater d = new Deflater(Deflater.BEST_SPEED);
+        try {
+            d.setInput(sample, 0, len);
+            d.finish();
+            final byte[] buf = new byte[4096];
+            long out = 0;
+            while (!d.finished())
+                out += d.deflate(buf);
+            return out * 100 < (long) len * PROBE_RATIO_PERCENT;
+        } finally {
+            d.end();
         }
     }
     /**
@@ -140,12 +404,13 @@ public class TeleportaCommons {
         return data;
     }
     public static String toHex(byte[] data, int from, int to) {
-        // *not* thread safe
-        final java.util.Formatter formatter = new java.util.Formatter();
-        for (int i = from; i < (to <= 0 ? data.length : to); i++)
-            formatter.format("%02x", data[i]);
-
-        return formatter.toString();
+        final int end = to <= 0 ? data.length : to;
+        final char[] out = new char[2 * (end - from)];
+        for (int i = from, j = 0; i < end; i++) {
+            out[j++] = HEX_DIGITS[(data[i] >> 4) & 0xF];
+            out[j++] = HEX_DIGITS[data[i] & 0xF];
+        }
+        return new String(out);
     }
     public static File checkCreateHomeFolder(String prefix) {
         final File teleportaHome;
@@ -355,6 +620,25 @@ public class TeleportaCommons {
             if (result != -1) count++;
             return result;
         }
+        // must be overridden, otherwise each bulk read will be done byte by byte
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int result = in.read(b, off, len);
+            if (result != -1) count += result;
+            return result;
+        }
+        @Override
+        public long skip(long n) throws IOException {
+            final long result = in.skip(n); count += result; return result;
+        }
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
     }
 
     static class CountingOutputStream extends OutputStream {
@@ -477,6 +761,94 @@ public class TeleportaCommons {
     }
 
 
+    /**
+     * Takes transfer buffer from pool. Must be returned with {@link #releaseBuffer}
+     * @return
+     *      cleared heap buffer
+     */
+    static ByteBuffer takeBuffer() {
+        final ByteBuffer buf = TRANSFER_BUFFERS.poll();
+        if (buf == null)
+            return ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+        buf.clear();
+        return buf;
+    }
+    /**
+     * Returns transfer buffer to pool. If pool is full, buffer is just dropped
+     * @param buf
+     *          buffer, taken by {@link #takeBuffer}
+     */
+    static void releaseBuffer(ByteBuffer buf) {
+        TRANSFER_BUFFERS.offer(buf);
+    }
+
+    /**
+     * Sends file content to output stream.
+     * Uses positional reads with large buffer, without flushing after each block:
+     * output stream is provided by http server, so there is no socket channel
+     * for FileChannel.transferTo
+     * @param in
+     *          source file channel
+     * @param position
+     *          start position in file
+     * @param out
+     *          target stream
+     * @param progress
+     *          called with current time, not more often than once per second.
+     *          Could be null
+     * @return
+     *      number of bytes sent
+     * @throws IOException
+     *          on i/o errors
+     */
+    static long transferFile(FileChannel in, long position,
+                             OutputStream out, LongConsumer progress) throws IOException {
+        return transferFile(in, position, Long.MAX_VALUE, out, progress);
+    }
+    /**
+     * Sends part of file content to output stream
+     * @param in
+     *          source file channel
+     * @param position
+     *          start position in file
+     * @param length
+     *          max number of bytes to send, file could be longer
+     * @param out
+     *          target stream
+     * @param progress
+     *          called with current time, not more often than once per second.
+     *          Could be null
+     * @return
+     *      number of bytes sent
+     * @throws IOException
+     *          on i/o errors
+     */
+    static long transferFile(FileChannel in, long position, long length,
+                             OutputStream out, LongConsumer progress) throws IOException {
+        final ByteBuffer buf = takeBuffer();
+        try {
+            long total = 0, lastProgress = 0;
+            for (; total < length; buf.clear()) {
+                buf.limit((int) Math.min(buf.capacity(), length - total));
+                final int n = in.read(buf, position + total);
+                if (n <= 0)
+                    break;
+                out.write(buf.array(), buf.arrayOffset(), n);
+                total += n;
+                if (progress == null)
+                    continue;
+                final long now = System.currentTimeMillis();
+                if (now - lastProgress > 1000) {
+                    progress.accept(now);
+                    lastProgress = now;
+                }
+            }
+            return total;
+        } finally {
+            releaseBuffer(buf);
+        }
+    }
+
     /**
      * Calc percent between provided numbers
      * @param count
@@ -485,6 +857,9 @@ public class TeleportaCommons {
      *      rounded percent as int
      */
     public static int percent(long count,long total)  {
+        // size is not known, when file is downloaded while it's being uploaded
+        if (total <= 0)
+            return 0;
         return (int)(count * 100.0 / total + 0.5);
     }
 
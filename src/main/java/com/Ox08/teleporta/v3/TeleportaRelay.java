@@ -11,17 +11,32 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.CodeSource;
+import java.security.DigestInputStream;
 import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.PublicKey;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -39,7 +54,10 @@ import static com.Ox08.teleporta.v3.services.TeleFilesWatch.isAcceptable;
  */
 public class TeleportaRelay {
     static final String EXT_UPLOAD = ".upload", // file being uploaded
-                        EXT_FILE =".dat"; // file is stored on relay
+                        EXT_FILE =".dat", // file is stored on relay
+                        EXT_SEGMENT = ".seg"; // segment of large file, sent in parallel
+    // response header, set when relay holds poll request till events (long-poll)
+    static final String POLL_WAIT_HEADER = "X-Teleporta-Wait";
     private final static Logger LOG = Logger.getLogger("TC");
     // single thread executor
     private final static ScheduledExecutorService ses = Executors.newScheduledThreadPool(1);
@@ -105,9 +123,13 @@ public class TeleportaRelay {
                 port = 8989;
 
         }
+        final RelayLimits limits = new RelayLimits();
         // create server
-        final HttpServer server = HttpServer.create(new InetSocketAddress(port), 50);
-        server.setExecutor(Executors.newFixedThreadPool(255));
+        final HttpServer server = HttpServer.create(new InetSocketAddress(port), limits.backlog);
+        // note: idle and kept-alive connections are handled by server's selector,
+        // threads are taken only by requests in progress
+        final ExecutorService workers = newWorkers(limits.workers);
+        server.setExecutor(workers);
         final TeleCrypt tc = new TeleCrypt();
         // generate relay key pair
         final KeyPair rkp = tc.generateKeys();
@@ -120,11 +142,13 @@ public class TeleportaRelay {
         }
         final boolean respondVersion =
                 Boolean.parseBoolean(System.getProperty("respondVersion", "true"));
-        final RelayLimits limits = new RelayLimits();
         // build runtime context for relay itself
         final RelayRuntimeContext rc = new RelayRuntimeContext(limits,
                 teleportaHome,
-                rkp, privateRelay,allowClipboard,respondVersion);
+                rkp, privateRelay,allowClipboard,respondVersion, workers);
+        // load non-delivered files, left from previous run
+        rc.pending.rebuild(teleportaHome);
+        rc.uploads.rebuild(teleportaHome);
         final EmbeddedClient ec;
         // check if 'embedded' portal is enabled 
         if (relayHasPortal) {
@@ -172,6 +196,26 @@ public class TeleportaRelay {
             server.createContext(generateUrl(seed, "cb-upload"))
                 .setHandler(new ClipboardUploadHandler(rc));
         }
+        server.createContext(generateUrl(seed, "file-ack"))
+                .setHandler(new FileAckHandler(rc));
+        server.createContext(generateUrl(seed, "batch-download"))
+                .setHandler(new BatchDownloadHandler(rc));
+        server.createContext(generateUrl(seed, "upload-start"))
+                .setHandler(new UploadStartHandler(rc));
+        server.createContext(generateUrl(seed, "upload-status"))
+                .setHandler(new UploadStatusHandler(rc));
+        server.createContext(generateUrl(seed, "upload-chunk"))
+                .setHandler(new UploadChunkHandler(rc));
+        server.createContext(generateUrl(seed, "segment-upload"))
+                .setHandler(new SegmentUploadHandler(rc));
+        server.createContext(generateUrl(seed, "segment-download"))
+                .setHandler(new SegmentDownloadHandler(rc));
+        server.createContext(generateUrl(seed, "blob-check"))
+                .setHandler(new BlobCheckHandler(rc));
+        server.createContext(generateUrl(seed, "blob-upload"))
+                .setHandler(new BlobUploadHandler(rc));
+        server.createContext(generateUrl(seed, "blob-download"))
+                .setHandler(new BlobDownloadHandler(rc));
         server.createContext(generateUrl(seed, "register"))
                 .setHandler(new RegisterHandler(rc));
         server.createContext(generateUrl(seed, "get-portals"))
@@ -311,13 +355,12 @@ public class TeleportaRelay {
                 return;
             }
             // 'to' param is used as session
-            if (!rc.portals.containsKey(to)) {
+            final RuntimePortal p = rc.portals.get(to);
+            if (p == null) {
                 LOG.warning(TeleportaError.messageFor(0x6108, to));
+                respondAndClose(403, httpExchange);
                 return;
             }
-            final RuntimePortal p = rc.portals.get(to);
-            // reset 'reload' mark
-            p.needReloadPortals = false;
             // if there is no portals registered - just respond 200 ok without body
             if (rc.portals.isEmpty()) {
                 respondAndClose(200, httpExchange);
@@ -329,11 +372,39 @@ public class TeleportaRelay {
              */
             final Properties props = new Properties();
             int count = 0;
-            for (Map.Entry<String, RuntimePortal> pp : rc.portals.entrySet()) {
-                count++;
-                props.put(String.format("portal.%d.id", count), PK.toExternal(pp.getKey()));
-                props.put(String.format("portal.%d.name", count), pp.getValue().name);
-                props.put(String.format("portal.%d.publicKey", count), pp.getValue().publicKey);
+            // portal sends last known registry version, to get only changes since it
+            final Map<String, Boolean> changes = new LinkedHashMap<>();
+            final long version = params.containsKey("since") ?
+                    rc.portals.changesSince(parseVersion(params.get("since")), changes) : -1;
+            if (version >= 0) {
+                final StringBuilder removed = new StringBuilder();
+                for (Map.Entry<String, Boolean> c : changes.entrySet()) {
+                    final RuntimePortal pp = c.getValue() ? null : rc.portals.get(c.getKey());
+                    // portal could be removed after change
+                    if (pp == null) {
+                        if (removed.length() > 0)
+                            removed.append(",");
+                        removed.append(PK.toExternal(c.getKey()));
+                        continue;
+                    }
+                    count++;
+                    putPortal(props, count, c.getKey(), pp);
+                }
+                props.put("delta", "true");
+                if (removed.length() > 0)
+                    props.put("removed", removed.toString());
+                props.put("version", String.valueOf(version));
+                p.portalsEpoch = version;
+            } else {
+                // full list. Version is taken before iteration, so changes made
+                // during iteration will be sent again with next delta
+                final long current = rc.portals.version();
+                props.put("version", String.valueOf(current));
+                p.portalsEpoch = current;
+                for (Map.Entry<String, RuntimePortal> pp : rc.portals.entries()) {
+                    count++;
+                    putPortal(props, count, pp.getKey(), pp.getValue());
+                }
             }
             // the 'total' property is used as counter, to iterate over properties,
             // linked to same portal
@@ -341,7 +412,22 @@ public class TeleportaRelay {
             if (LOG.isLoggable(Level.FINE))
                 LOG.fine(TeleportaMessage.of("teleporta.system.message.respondPortals", count));
 
-            respondEncryptedProperties(p.publicKey, props, httpExchange);
+            respondEncryptedProperties(p, params.get("sk"), props, httpExchange);
+        }
+        private void putPortal(Properties props, int count, String id, RuntimePortal p) {
+            props.put(String.format("portal.%d.id", count), PK.toExternal(id));
+            props.put(String.format("portal.%d.name", count), p.name);
+            props.put(String.format("portal.%d.publicKey", count), p.publicKey);
+            final String features = p.features;
+            if (features != null)
+                props.put(String.format("portal.%d.features", count), features);
+        }
+        private long parseVersion(String v) {
+            try {
+                return Long.parseLong(v);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
         }
     }
     /**
@@ -393,7 +479,8 @@ public class TeleportaRelay {
             final String name = data.getProperty("name", null),
                     // portal's public key
                     publicKey = data.getProperty("publicKey", null),
-                    currentId = data.getProperty("currentId",null);
+                    // portal sends id in external form
+                    currentId = PK.fromExternal(data.getProperty("currentId",null));
             /*
              * In 'private' mode, client must send special encrypted message,
              *  created with his copy of relay's public key.
@@ -419,12 +506,6 @@ public class TeleportaRelay {
                     return;
                 }
             }
-            // re-use old session id (if provided) or generate unique ID
-            String id = currentId==null
-                    // disallow duplicates
-                    || rc.portals.containsKey(currentId) ?  PK.generate() :
-                    // mean that relay has been restarted and lost all sessions
-                    currentId;
             // check for portal name
             if (name == null || name.isEmpty()) {
                 // portal name is empty
@@ -439,48 +520,21 @@ public class TeleportaRelay {
                 respondAndClose(500, httpExchange);
                 return;
             }
-            // check if portal's name already present on relay
-            if (rc.portalNames.containsKey(name)) {
-                final String existingId = rc.portalNames.get(name);
-                final RuntimePortal p = rc.portals.get(existingId);
-                // allow session replacement for same public key
-                if (p.publicKey.equals(publicKey)) {
-                    id = existingId;
-                    // mostly for testing
-                } else if (allowPortalNamesUpdate) {
-                    id = existingId;
-                    p.publicKey = publicKey; // update public key
-                    // notify all other portals to reload list from relay
-                    for (RuntimePortal pp : rc.portals.values()) {
-                        // skip self
-                        if (pp.name.equals(p.name))
-                            continue;
-
-                        pp.needReloadPortals = true;
-                    }
-                } else {
-                    // duplicate portal name
-                    LOG.log(Level.WARNING, TeleportaError.messageFor(0x6113));
-                    respondAndClose(403, httpExchange);
-                    return;
-                }
-            } else {
-                // if there is no portal with this name - proceed with registration
-                // inform all other portals to reload portals list
-                for (RuntimePortal p : rc.portals.values())
-                    p.needReloadPortals = true;
-
-                // register new portal on relay
-                rc.portals.put(id, new RuntimePortal(name, publicKey));
-                rc.portalNames.put(name, id);
-                if (LOG.isLoggable(Level.FINE))
-                    LOG.fine(TeleportaMessage
-                            .of("teleporta.system.message.portalRegistered", id));
-
+            // register new portal or refresh existing session, atomically
+            final String id = rc.portals.register(currentId, name, publicKey,
+                    data.getProperty("features", null), allowPortalNamesUpdate);
+            if (id == null) {
+                // duplicate portal name
+                LOG.log(Level.WARNING, TeleportaError.messageFor(0x6113));
+                respondAndClose(403, httpExchange);
+                return;
             }
             // respond back generated ID
             final Properties resp = new Properties();
             resp.setProperty("id", PK.toExternal(id));
+            // share session key, if portal supports it
+            startSession(rc.portals.get(id), hasFeature(data.getProperty("features"),
+                    FEATURE_SESSION), resp);
             /*
              * If we operate in normal mode then it's ok to respond relay's public key
              */
@@ -490,9 +544,46 @@ public class TeleportaRelay {
             // add MOTD if present
             if (motd!=null)
                 resp.setProperty("motd",motd);
+            // relay-side features, so portal knows what it could use
+            resp.setProperty("features", String.join(",",
+                    FEATURE_FANOUT, FEATURE_CAS, FEATURE_RESUME, FEATURE_SEGMENTS)
+                    + (rc.limits.liveTimeout > 0 ? "," + FEATURE_LIVE : "")
+                    + (rc.limits.inlineSize > 0 ? "," + FEATURE_INLINE : "")
+                    + (rc.limits.maxBatch > 0 ? "," + FEATURE_BATCH : ""));
 
             respondProperties(resp, httpExchange);
         }
+        /**
+         * Generates new session key for portal and puts it into response,
+         * wrapped with portal's public key.
+         * This is the only RSA operation, required for session mode.
+         * @param p
+         *          registered portal
+         * @param supported
+         *          true if portal supports session mode
+         * @param resp
+         *          response to relay
+         */
+        private void startSession(RuntimePortal p, boolean supported, Properties resp) {
+            if (p == null)
+                return;
+            // drop previous key: portal lost it on re-register
+            p.session = null;
+            if (!supported || rc.limits.sessionRekey <= 0)
+                return;
+            try {
+                final SessionKey sk = new SessionKey(String.valueOf(generateUniqueID()),
+                        tc.generateFileKey());
+                final PublicKey pk = tc.restorePublicKey(p.id, p.publicKey);
+                resp.setProperty("sessionKey",
+                        toHex(tc.encryptKey(sk.key.getEncoded(), pk), 0, 0));
+                resp.setProperty("sessionKeyId", sk.id);
+                p.session = sk;
+            } catch (Exception e) {
+                // portal will work in legacy mode
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
     }
 
     /**
@@ -521,59 +612,93 @@ public class TeleportaRelay {
                 return;
             }
             // no active portal with this ID
-            if (!rc.portals.containsKey(to)) {
+            final RuntimePortal p = rc.portals.get(to);
+            if (p == null) {
                 LOG.warning(TeleportaError.messageFor(0x6108, to));
                 respondAndClose(403, httpExchange);
                 return;
             }
-
-            final RuntimePortal p = rc.portals.get(to);
             // mark 'last seen online'
             p.lastSeen = System.currentTimeMillis();
+            // files, embedded into previous response, are confirmed with next poll
+            confirmDelivered(rc, to, params.get("ack"));
+            // long-poll mode: portal asks to hold request till some event happens
+            final long wait = getPollWait(params);
+            if (wait <= 0) {
+                respondPoll(p, to, params, httpExchange);
+                return;
+            }
+            // respond actual timeout, so portal will know that it could re-poll immediately
+            httpExchange.getResponseHeaders().set(POLL_WAIT_HEADER,
+                    String.valueOf(wait / 1000));
+            // request is parked without holding a thread:
+            // response is sent by worker, on event or timeout
+            rc.portals.park(p, wait, rc.workers, () -> {
+                rc.parkedPolls.decrementAndGet();
+                // portal was online all that time
+                p.lastSeen = System.currentTimeMillis();
+                try {
+                    respondPoll(p, to, params, httpExchange);
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                    httpExchange.close();
+                }
+            });
+        }
+        /**
+         * Responds pending events of portal
+         * @param p
+         *          portal
+         * @param to
+         *          portal id
+         * @param params
+         *          query params
+         * @param httpExchange
+         *          current http exchange
+         * @throws IOException
+         *          on i/o errors
+         */
+        private void respondPoll(RuntimePortal p, String to, Map<String, String> params,
+                                 HttpExchange httpExchange) throws IOException {
+            // remember current files event before listing folder,
+            // so files, arrived during listing will trigger next poll
+            final long filesEvent = p.filesEvent;
             final Properties props = new Properties();
             // put mark if client must reload portals list
-            if (p.needReloadPortals)
+            if (p.portalsEpoch != rc.portals.version())
                 props.setProperty("reloadPortals", "true");
             // put another mark if client must set clipboard (if enabled)
-            if (p.needLoadClipboard)
+            if (p.clipboardEpoch != rc.portals.clipboardEpoch())
                 props.setProperty("updateClipboard", "true");
 
-            final File toFolder = new File(rc.storageDir, PK.toExternal(to));
-            // if there were no files for that portal (could be a new one)
-            if (!toFolder.exists() || !toFolder.isDirectory()) {
-                // no additional properties
-                if (props.isEmpty())
-                    respondAndClose(200, httpExchange);
-                else
-                    respondEncryptedProperties(p.publicKey, props, httpExchange);
+            // get ready files from index, without touching disk
+            final List<String> ready = rc.pending.list(PK.toExternal(to),
+                    rc.limits.maxPendingFilesAtOnce + 1);
+            // uploads in progress, which could be downloaded while data arrives
+            if (hasFeature(p.features, FEATURE_LIVE))
+                rc.uploads.listLive(to, System.currentTimeMillis() - rc.limits.liveTimeout,
+                        ready, rc.limits.maxPendingFilesAtOnce + 1);
+            final boolean truncated = ready.size() > rc.limits.maxPendingFilesAtOnce;
+            if (truncated)
+                ready.remove(ready.size() - 1);
+            // small files are sent within response, so portal does not download them
+            final Map<String, byte[]> inline = rc.limits.inlineSize > 0
+                    && hasFeature(p.features, FEATURE_INLINE) ? readInlineFiles(to, ready) : null;
 
-                return;
-            }
             final StringBuilder sb = new StringBuilder();
-            try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(toFolder.toPath())) {
-                int fileCounter = 1;
-                for (Path e : dirStream) {
-                    // limit reached
-                    if (fileCounter > rc.limits.maxPendingFilesAtOnce)
-                        break;
-
-                    // skip files which are not ready or not ours (no .dat extension)
-                    if (!e.toString().endsWith(EXT_FILE))
-                        continue;
-
-                    // append separator, if this is not the first record
-                    if (sb.length() > 0)
-                        sb.append(",");
-
-                    String name = e.getFileName().toString();
-                    // remove prefix and extension from file name
-                    name = name.substring("f_".length(), name.length() - EXT_FILE.length());
-                    sb.append(name);
-                    fileCounter++;
-                }
-            } catch (IOException e) {
-                LOG.log(Level.WARNING, e.getMessage(), e);
+            for (String id : ready) {
+                // append separator, if this is not the first record
+                if (sb.length() > 0)
+                    sb.append(",");
+                sb.append(id);
             }
+            // if not all pending files were listed - keep event unacknowledged,
+            // so next poll will not wait
+            if (!truncated)
+                p.ackedFilesEvent = filesEvent;
+            // portal could get the rest with batch requests
+            else if (rc.limits.maxBatch > 0 && hasFeature(p.features, FEATURE_BATCH))
+                props.setProperty("backlog", "true");
             // there is no pending files, but settings
             if (sb.length() == 0) {
                 // and no any properties (that's ok), just respond 200 OK with empty body
@@ -581,13 +706,69 @@ public class TeleportaRelay {
                     respondAndClose(200, httpExchange);
                 // otherwise - encode them and respond
                 else
-                    respondEncryptedProperties(p.publicKey, props, httpExchange);
+                    respondEncryptedProperties(p, params.get("sk"), props, inline, httpExchange);
 
                 return;
             }
             // there are some pending files - proceed
             props.setProperty("files", sb.toString());
-            respondEncryptedProperties(p.publicKey, props, httpExchange);
+            respondEncryptedProperties(p, params.get("sk"), props, inline, httpExchange);
+        }
+        /**
+         * Reads small files, so they could be embedded into poll response
+         * @param to
+         *          portal id
+         * @param ids
+         *          ready files
+         * @return
+         *      file id to file container, in same order
+         */
+        private Map<String, byte[]> readInlineFiles(String to, List<String> ids) {
+            final Map<String, byte[]> out = new LinkedHashMap<>();
+            final File folder = new File(rc.storageDir, PK.toExternal(to));
+            for (String id : ids) {
+                final File f = new File(folder, String.format("f_%s%s", id, EXT_FILE));
+                // zero length if file does not exist
+                final long length = f.length();
+                if (length == 0 || length > rc.limits.inlineSize)
+                    continue;
+                try {
+                    out.put(id, Files.readAllBytes(f.toPath()));
+                } catch (IOException e) {
+                    // file was removed, portal will get error on download
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+            return out;
+        }
+        /**
+         * Get poll timeout, requested by portal
+         * @param params
+         *          query params
+         * @return
+         *      timeout in milliseconds or 0 if poll should not wait
+         */
+        private long getPollWait(Map<String, String> params) {
+            // long-poll disabled on relay
+            if (rc.limits.pollTimeout <= 0)
+                return 0;
+            final String w = params.get("wait");
+            if (w == null || w.isEmpty())
+                return 0;
+            final long wait;
+            try {
+                wait = Math.min(Long.parseLong(w) * 1000, rc.limits.pollTimeout);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+            if (wait <= 0)
+                return 0;
+            // waiting polls are cheap, but still consume memory and connections
+            if (rc.parkedPolls.incrementAndGet() > rc.limits.maxParkedPolls) {
+                rc.parkedPolls.decrementAndGet();
+                return 0;
+            }
+            return wait;
         }
     }
     /**
@@ -615,27 +796,27 @@ public class TeleportaRelay {
                 return;
             }
             // extract query params
-            final String from = PK.fromExternal(params.get("from")), // source portal
-                    to = PK.fromExternal(params.get("to")); // target portal
-            // broken or malformed portal IDs
-            if (from==null || to==null) {
-                respondAndClose(400, httpExchange);
+            final String from = PK.fromExternal(params.get("from")); // source portal
+            // target portals, there could be many if file is sent once for all of them
+            final List<String> recipients = checkUploadPortals(from, params.get("to"), httpExchange);
+            if (recipients == null)
                 return;
-            }
-            if (!rc.portals.containsKey(from)) {
-                LOG.warning(TeleportaError.messageFor(0x6108, from));
+            // file is uploaded to first portal's folder, others get references
+            final String to = recipients.get(0);
+            final RuntimePortal p = rc.portals.get(to);
+            if (p == null) {
+                LOG.warning(TeleportaError.messageFor(0x6108, to));
                 respondAndClose(403, httpExchange);
                 return;
             }
-            if (!rc.portals.containsKey(to)) {
-                LOG.warning(TeleportaError.messageFor(0x6108, to));
-                respondAndClose(403, httpExchange);
+            final String fileId = String.valueOf(generateUniqueID()),
+                    // file content could be already stored in blob store
+                    blob = params.get("blob");
+            if (blob != null && !rc.blobs.addRefs(blob, fileId, recipients)) {
+                // blob not found, sender should upload it first
+                respondAndClose(404, httpExchange);
                 return;
             }
-            if (LOG.isLoggable(Level.FINE))
-                LOG.fine(TeleportaMessage.of("teleporta.system.message.fromTo", from, to));
-
-            final RuntimePortal p = rc.portals.get(to);
             // generate storage folder
             // external form is used as folder name
             final File toFolder = new File(rc.storageDir, PK.toExternal(to));
@@ -643,18 +824,13 @@ public class TeleportaRelay {
             checkCreateFolder(toFolder);
             // create temp file on relay side
             final File out = new File(toFolder,
-                    String.format("f_%d%s", generateUniqueID(), EXT_UPLOAD));
-            final byte[] buffer = new byte[4096];
+                    String.format("f_%s%s", fileId, EXT_UPLOAD));
             // transfer file
-            try (CountingInputStream in = new CountingInputStream(httpExchange.getRequestBody());
-                 FileOutputStream fout = new FileOutputStream(out)) {
-                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
-                    // we need to update lastSeen during uploading,
-                    // because it could be slow
-                    p.lastSeen = System.currentTimeMillis();
-                    fout.write(buffer, 0, n);
-                    fout.flush();
-                }
+            try (InputStream in = httpExchange.getRequestBody();
+                 FileChannel fout = FileChannel.open(out.toPath(),
+                         StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                final long received = receiveFile(in, fout, p, rc.limits);
                 //  respond 200 OK with no data
                 httpExchange.sendResponseHeaders(200, 0);
                 httpExchange.close();
@@ -662,7 +838,7 @@ public class TeleportaRelay {
                     LOG.fine(TeleportaMessage
                             .of("teleporta.system.message.fileUploaded",
                             out.getAbsolutePath(),
-                            in.getCount()));
+                            received));
 
             } catch (Exception e) {
                 LOG.log(Level.WARNING, e.getMessage(), e);
@@ -678,8 +854,200 @@ public class TeleportaRelay {
                 respondAndClose(500, httpExchange);
             } finally {
                 // cannot rename file when it's opened on Windows
-                renameUploadedFile(out);
+                if (out.exists())
+                    completeUpload(rc, out, fileId, recipients);
+            }
+        }
+    }
+    /**
+     * Starts resumable upload. Relay responds upload id, used to send chunks
+     */
+    static class UploadStartHandler extends AbstractHandler {
+        UploadStartHandler(RelayRuntimeContext rc) {
+            super(rc);
+        }
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            setVersionHeader(httpExchange);
+            if (checkIfNonPostRequest(httpExchange))
+                return;
+            final Map<String, String> params = getQueryParams(httpExchange.getRequestURI());
+            final String from = PK.fromExternal(params.get("from"));
+            final List<String> recipients = checkUploadPortals(from, params.get("to"), httpExchange);
+            if (recipients == null)
+                return;
+            final UploadSession s;
+            try {
+                s = rc.uploads.start(rc.storageDir, from, recipients);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+                respondAndClose(500, httpExchange);
+                return;
+            }
+            final Properties props = new Properties();
+            props.setProperty("upload", s.id);
+            props.setProperty("offset", "0");
+            respondProperties(props, httpExchange);
+        }
+    }
+    /**
+     * Responds committed offset of resumable upload
+     */
+    static class UploadStatusHandler extends AbstractHandler {
+        UploadStatusHandler(RelayRuntimeContext rc) {
+            super(rc);
+        }
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            setVersionHeader(httpExchange);
+            final Map<String, String> params = getQueryParams(httpExchange.getRequestURI());
+            final UploadSession s = rc.uploads.get(params.get("upload"),
+                    PK.fromExternal(params.get("from")));
+            if (s == null) {
+                respondAndClose(404, httpExchange);
+                return;
+            }
+            final Properties props = new Properties();
+            final long offset;
+            synchronized (s) {
+                offset = s.offset;
+            }
+            props.setProperty("offset", String.valueOf(offset));
+            respondProperties(props, httpExchange);
+        }
+    }
+    /**
+     * Appends chunk to resumable upload.
+     * Chunk is accepted only at committed offset, failed chunk is truncated,
+     * so committed offset is always at chunk boundary.
+     */
+    static class UploadChunkHandler extends AbstractHandler {
+        UploadChunkHandler(RelayRuntimeContext rc) {
+            super(rc);
+        }
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            setVersionHeader(httpExchange);
+            if (checkIfNonPostRequest(httpExchange))
+                return;
+            final Map<String, String> params = getQueryParams(httpExchange.getRequestURI());
+            final String from = PK.fromExternal(params.get("from"));
+            final UploadSession s = rc.uploads.get(params.get("upload"), from);
+            final RuntimePortal p = from != null ? rc.portals.get(from) : null;
+            if (s == null || p == null) {
+                respondAndClose(s == null ? 404 : 403, httpExchange);
+                return;
+            }
+            final long offset;
+            try {
+                offset = Long.parseLong(params.get("offset"));
+            } catch (NumberFormatException e) {
+                respondAndClose(400, httpExchange);
+                return;
+            }
+            final long committed;
+            final boolean accepted;
+            // lock is held only to check and commit offset, not while chunk is received
+            // or response is sent, so retries and cleanup are not blocked by slow uploads
+            synchronized (s) {
+                committed = s.offset;
+                accepted = !s.receiving && offset == committed;
+                if (accepted)
+                    s.receiving = true;
+            }
+            if (!accepted) {
+                // client should continue from committed offset
+                LOG.warning(TeleportaError.messageFor(0x7282, s.id, offset, committed));
+                respondAndClose(409, httpExchange);
+                return;
+            }
+            long length = -1;
+            try (InputStream in = httpExchange.getRequestBody();
+                 FileChannel fout = FileChannel.open(s.file.toPath(),
+                         StandardOpenOption.WRITE)) {
+                fout.position(committed);
+                length = committed + receiveFile(in, fout, p, rc.limits);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+            final boolean last = Boolean.parseBoolean(params.get("last"));
+            // live downloads must close data file before it's renamed
+            if (last && length >= 0 && s.live)
+                try {
+                    s.awaitReaders(rc.limits.liveTimeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            if (length < 0) {
+                // drop partially received chunk. No lock is needed:
+                // other chunks are rejected, while this one is 'receiving'
+                try (FileChannel fout = FileChannel.open(s.file.toPath(),
+                        StandardOpenOption.WRITE)) {
+                    fout.truncate(committed);
+                } catch (IOException ignored) {
+                }
+                synchronized (s) {
+                    s.receiving = false;
+                }
+                respondAndClose(500, httpExchange);
+                return;
+            }
+            synchronized (s) {
+                s.offset = length;
+                s.touched = System.currentTimeMillis();
+                // completed upload stays 'receiving' while it's published, so chunk retries
+                // are rejected, expiration skips it and live downloads keep waiting
+                s.receiving = last;
+                if (!last) {
+                    s.commit(length, false);
+                    if (!s.live && rc.limits.liveTimeout > 0)
+                        announceLive(s);
+                }
+            }
+            if (last)
+                try {
+                    if (LOG.isLoggable(Level.FINE))
+                        LOG.fine(TeleportaMessage.of("teleporta.system.message.fileUploaded",
+                                s.file.getAbsolutePath(), length));
+                    // linking or copying to other recipients could take long,
+                    // so it's done without session lock.
+                    // File must be ready before live downloads are completed,
+                    // because recipients confirm delivery right after
+                    completeUpload(rc, s.file, s.id, s.recipients);
+                    rc.uploads.finish(s);
+                    s.commit(length, true);
+                } finally {
+                    // if publishing failed - session must still expire
+                    synchronized (s) {
+                        s.receiving = false;
+                    }
+                }
+            final Properties props = new Properties();
+            props.setProperty("offset", String.valueOf(length));
+            respondProperties(props, httpExchange);
+        }
+        /**
+         * Lists upload in progress to recipients, which could download it
+         * while data arrives
+         * @param s
+         *          upload session
+         */
+        private void announceLive(UploadSession s) {
+            final List<RuntimePortal> targets = new ArrayList<>();
+            for (String r : s.recipients) {
+                final RuntimePortal rp = rc.portals.get(r);
+                if (rp != null && hasFeature(rp.features, FEATURE_LIVE))
+                    targets.add(rp);
             }
+            if (targets.isEmpty())
+                return;
+            rc.uploads.goLive(s);
+            if (LOG.isLoggable(Level.FINE))
+                LOG.fine(TeleportaMessage.of("teleporta.system.message.liveUpload",
+                        s.id, targets.size()));
+            // wake up target portals, if they wait for files
+            for (RuntimePortal rp : targets)
+                rp.fileArrived();
         }
     }
 
@@ -710,7 +1078,7 @@ public class TeleportaRelay {
                 respondAndClose(400, httpExchange);
                 return;
             }
-            if (!rc.portals.containsKey(from)) {
+            if (!rc.portals.contains(from)) {
                 LOG.warning(TeleportaError.messageFor(0x6108, from));
                 respondAndClose(403, httpExchange);
                 return;
@@ -750,12 +1118,7 @@ public class TeleportaRelay {
                 // attach current clipboard file to context
                 rc.currentCbFile = out;
                 // notify all other about clipboard update
-                for (String k : rc.portals.keySet()) {
-                    if (k.equals(from))
-                        continue;
-                    final RuntimePortal p = rc.portals.get(k);
-                    p.needLoadClipboard = true;
-                }
+                rc.portals.notifyClipboard(from);
                 //  respond 200 OK with no data
                 httpExchange.sendResponseHeaders(200, 0);
             } catch (Exception e) {
@@ -803,19 +1166,20 @@ public class TeleportaRelay {
             if (LOG.isLoggable(Level.FINE))
                 LOG.fine(TeleportaMessage.of("teleporta.system.message.to", to));
 
-            if (!rc.portals.containsKey(to)) {
+            // get target portal
+            final RuntimePortal p = rc.portals.get(to);
+            if (p == null) {
                 // portal not found error
                 LOG.warning(TeleportaError.messageFor(0x6108, to));
                 respondAndClose(403, httpExchange);
                 return;
             }
-
-            // get target portal
-            final RuntimePortal p = rc.portals.get(to);
+            // take epoch before file, so next update will not be lost
+            final long clipboardEpoch = rc.portals.clipboardEpoch();
             // check for clipboard file
             final File rFile = rc.currentCbFile;
             if (!isAcceptable(rFile,true)) {
-                p.needLoadClipboard = false;
+                p.clipboardEpoch = clipboardEpoch;
                 LOG.warning(TeleportaError.messageFor(0x7222,""));
                 respondAndClose(400, httpExchange);
                 return;
@@ -837,8 +1201,7 @@ public class TeleportaRelay {
                 // now generate another session key
                 final SecretKey key2 = tc.generateFileKey();
                 // get target portal's public key
-                final PublicKey pk = tc.restorePublicKey(
-                        fromHex(rc.portals.get(to).publicKey));
+                final PublicKey pk = tc.restorePublicKey(p.id, p.publicKey);
                 // and now encrypt data with a new key
                 final byte[] enc2 = tc.encryptKey(key2.getEncoded(), pk);
                 out.write(AbstractClient.TELEPORTA_PACKET_HEADER);
@@ -846,8 +1209,8 @@ public class TeleportaRelay {
                 out.flush();
                 // do re-encryption for data flow
                 tc.rencryptData(rkey, key2, fin, out);
-                // reset mark for clipboard update
-                p.needLoadClipboard = false;
+                // remember loaded clipboard update
+                p.clipboardEpoch = clipboardEpoch;
                 if (LOG.isLoggable(Level.FINE)) {
                     LOG.fine(TeleportaMessage.of("teleporta.system.message.fileDownloaded",
                             rFile.getAbsolutePath(),
@@ -894,9 +1257,20 @@ public class TeleportaRelay {
                 LOG.fine(TeleportaMessage.of("teleporta.system.message.toFile", to, fileId));
 
             final RuntimePortal p = rc.portals.get(to);
+            if (p == null) {
+                LOG.warning(TeleportaError.messageFor(0x6108, to));
+                respondAndClose(403, httpExchange);
+                return;
+            }
             // external form is used for files/folders stored on disk
             final File toFolder = new File(rc.storageDir, PK.toExternal(to)),
                     rFile = new File(toFolder, String.format("f_%s%s", PK.toExternal(fileId), EXT_FILE));
+            // file could be still uploading, then data is sent as it arrives
+            if (!rFile.exists() && rc.limits.liveTimeout > 0) {
+                final UploadSession s = rc.uploads.getLive(PK.toExternal(fileId), to);
+                if (s != null && downloadLive(s, p, rFile, httpExchange))
+                    return;
+            }
             if (!isAcceptable(rFile,true)) {
                 // stored file not found
                 LOG.warning(TeleportaError.messageFor(0x6114,
@@ -904,179 +1278,1880 @@ public class TeleportaRelay {
                 respondAndClose(400, httpExchange);
                 return;
             }
-            httpExchange.sendResponseHeaders(200, rFile.length());
-            final byte[] buffer = new byte[4096];
-            try (CountingOutputStream out = new CountingOutputStream(httpExchange.getResponseBody());
-                 FileInputStream fin = new FileInputStream(rFile)) {
-                // respond file data
-                for (int n = fin.read(buffer); n >= 0; n = fin.read(buffer)) {
-                    // mark 'last seen online'
-                    p.lastSeen = System.currentTimeMillis();
-                    out.write(buffer, 0, n);
-                    out.flush();
-                }
+            // portal, which supports resume, confirms delivery with separate request,
+            // so file is kept until then and could be downloaded again from any offset
+            final boolean ack = hasFeature(p.features, FEATURE_RESUME);
+            final long length = rFile.length(),
+                    offset = ack ? parseRange(httpExchange.getRequestHeaders()
+                            .getFirst("Range"), length) : 0;
+            if (offset < 0) {
+                httpExchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                respondAndClose(416, httpExchange);
+                return;
+            }
+            if (offset > 0) {
+                httpExchange.getResponseHeaders().set("Content-Range",
+                        String.format("bytes %d-%d/%d", offset, length - 1, length));
+                httpExchange.sendResponseHeaders(206, length - offset);
+            } else
+                httpExchange.sendResponseHeaders(200, length);
+            try (OutputStream out = httpExchange.getResponseBody();
+                 FileChannel fin = FileChannel.open(rFile.toPath(), StandardOpenOption.READ)) {
+                // respond file data, mark 'last seen online' during transfer
+                final long sent = transferFile(fin, offset, out, now -> p.lastSeen = now);
                 if (LOG.isLoggable(Level.FINE))
                     LOG.fine(TeleportaMessage.of("teleporta.system.message.fileDownloaded",
-                            rFile.getAbsolutePath(),
-                            out.getCount()));
+                            rFile.getAbsolutePath(), sent));
 
             } catch (Exception e) {
                 LOG.log(Level.WARNING, e.getMessage(), e);
             } finally {
-                // file removal is fast, no need to detach in dedicated thread
-                if (!rFile.delete())
-                    LOG.warning(TeleportaError.messageFor(0x6106,
-                            rFile.getAbsolutePath()));
-
+                if (!ack)
+                    removeDelivered(rc, to, fileId, rFile);
                 httpExchange.close();
             }
         }
-    }
-
-    /**
-     * Abstract shared handler, contains some useful stuff.
-     */
-    abstract static class AbstractHandler implements HttpHandler {
-        protected final TeleCrypt tc = new TeleCrypt();
-        protected final RelayRuntimeContext rc;
-        AbstractHandler(RelayRuntimeContext rc) {
-            this.rc = rc;
-        }
         /**
-         * Extract query params from URL
-         *
-         * @param u url
-         * @return key-value pairs with provided params
+         * Sends data of upload in progress, as it arrives.
+         * Total length is not known, so response is chunked. If upload stalls or fails,
+         * connection is dropped without completing response, so portal keeps
+         * received data and continues with next attempt.
+         * @param s
+         *          live upload
+         * @param p
+         *          target portal
+         * @param rFile
+         *          stored file of target portal, exists after upload is completed
+         * @param httpExchange
+         *          current http exchange
+         * @return
+         *      false if upload was completed before download started,
+         *      so stored file should be sent instead
+         * @throws IOException
+         *          on i/o errors or if upload was stalled
          */
-        Map<String, String> getQueryParams(URI u) {
-            if (u == null || u.getQuery() == null)
-                return Collections.emptyMap();
-
-            final String query = u.getQuery().toLowerCase().trim();
-            if (query.isEmpty())
-                return Collections.emptyMap();
-
-            final Map<String, String> qp = new LinkedHashMap<>();
-            final String[] pairs = query.split("&");
-            for (String pair : pairs) {
-                try {
-                    final int idx = pair.indexOf("=");
-                    final String key = idx > 0 ?
-                            URLDecoder.decode(pair.substring(0, idx),
-                                    String.valueOf(StandardCharsets.UTF_8)) : pair;
-                    final String value = idx > 0 && pair.length() > idx + 1 ?
-                            URLDecoder.decode(pair.substring(idx + 1),
-                                    String.valueOf(StandardCharsets.UTF_8)) : null;
-                    qp.put(key, value);
-                } catch (UnsupportedEncodingException e) {
-                    LOG.log(Level.WARNING, e.getMessage(), e);
-                    return Collections.emptyMap();
+        private boolean downloadLive(UploadSession s, RuntimePortal p, File rFile,
+                                     HttpExchange httpExchange) throws IOException {
+            if (!s.file.exists())
+                return false;
+            try {
+                final long offset = parseRange(httpExchange.getRequestHeaders()
+                        .getFirst("Range"), Long.MAX_VALUE);
+                if (LOG.isLoggable(Level.FINE))
+                    LOG.fine(TeleportaMessage.of("teleporta.system.message.liveDownload", s.id));
+                httpExchange.sendResponseHeaders(offset > 0 ? 206 : 200, 0);
+                final OutputStream out = httpExchange.getResponseBody();
+                long position = offset, committed,
+                        deadline = System.currentTimeMillis() + rc.limits.liveMaxWait;
+                while ((committed = s.awaitData(position, rc.limits.liveTimeout)) > position
+                        || committed < 0 && isReceiving(s)
+                        && System.currentTimeMillis() < deadline) {
+                    // large chunk is still being received, keep waiting
+                    if (committed < 0)
+                        continue;
+                    final long sent = sendRange(s, rFile, position, committed - position, out, p);
+                    // data file was removed
+                    if (sent == 0) {
+                        committed = -1;
+                        break;
+                    }
+                    position += sent;
+                    deadline = System.currentTimeMillis() + rc.limits.liveMaxWait;
+                    // send received data now, not when buffer is full
+                    out.flush();
                 }
+                // response must not be completed, if not all data was sent
+                if (committed < 0) {
+                    LOG.warning(TeleportaError.messageFor(0x7284, s.id));
+                    throw TeleportaError.withError(0x7284, s.id);
+                }
+                out.close();
+                if (LOG.isLoggable(Level.FINE))
+                    LOG.fine(TeleportaMessage.of("teleporta.system.message.fileDownloaded",
+                            s.file.getAbsolutePath(), position));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
             }
-            return qp;
+            return true;
         }
         /**
-         * Checks that current request is not POST
-         * We allow only POST for some endpoints.
-         *
-         * @param exchange current http context
-         * @return true if this request is not POST
-         * false - otherwise
+         * Sends committed range of live upload. Data file is opened only while range is sent,
+         * so it could be renamed on completion (not possible for opened file on Windows).
+         * If upload was completed - range is read from stored file
+         * @return
+         *      number of bytes sent, 0 if data file was removed
          */
-        protected boolean checkIfNonPostRequest(HttpExchange exchange) throws IOException {
-            if ("POST".equalsIgnoreCase(exchange.getRequestMethod()))
-                return false;
-            respondAndClose(400, exchange);
-            return true;
+        private long sendRange(UploadSession s, File rFile, long position, long length,
+                               OutputStream out, RuntimePortal p)
+                throws IOException, InterruptedException {
+            final boolean live = s.startRead(rc.limits.liveTimeout);
+            try (FileChannel fin = FileChannel.open((live ? s.file : rFile).toPath(),
+                    StandardOpenOption.READ)) {
+                return transferFile(fin, position, length, out, now -> p.lastSeen = now);
+            } catch (NoSuchFileException e) {
+                return 0;
+            } finally {
+                if (live)
+                    s.endRead();
+            }
+        }
+        /**
+         * Checks if chunk of upload is being received now
+         * @param s
+         *          upload session
+         * @return
+         *      true if source portal sent some data recently
+         */
+        private boolean isReceiving(UploadSession s) {
+            final RuntimePortal from = rc.portals.get(s.from);
+            // portal's 'last seen' is updated while data is received
+            return s.receiving && from != null
+                    && System.currentTimeMillis() - from.lastSeen < rc.limits.liveTimeout;
+        }
+    }
+    /**
+     * Sends many ready files with single response, one after another:
+     * [id][length][file container] for each file, then empty id.
+     * Files are kept until portal confirms delivery, confirmations of
+     * previous batch are sent in request body.
+     */
+    static class BatchDownloadHandler extends AbstractHandler {
+        BatchDownloadHandler(RelayRuntimeContext rc) {
+            super(rc);
+        }
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            setVersionHeader(httpExchange);
+            if (checkIfNonPostRequest(httpExchange))
+                return;
+            final Map<String, String> params = getQueryParams(httpExchange.getRequestURI());
+            final String to = PK.fromExternal(params.get("to"));
+            if (to == null || rc.limits.maxBatch <= 0) {
+                respondAndClose(400, httpExchange);
+                return;
+            }
+            final RuntimePortal p = rc.portals.get(to);
+            if (p == null) {
+                LOG.warning(TeleportaError.messageFor(0x6108, to));
+                respondAndClose(403, httpExchange);
+                return;
+            }
+            p.lastSeen = System.currentTimeMillis();
+            // comma-separated ids of delivered files, 20 digits max for each
+            final String acks;
+            try (InputStream in = httpExchange.getRequestBody()) {
+                acks = readAcks(in, rc.limits.maxBatch * 21 + 1024);
+            }
+            confirmDelivered(rc, to, acks);
+            int limit;
+            try {
+                limit = Math.min(Integer.parseInt(params.get("limit")), rc.limits.maxBatch);
+            } catch (NumberFormatException e) {
+                limit = rc.limits.maxBatch;
+            }
+            final File folder = new File(rc.storageDir, PK.toExternal(to));
+            final List<String> ready = rc.pending.list(PK.toExternal(to), limit);
+            httpExchange.sendResponseHeaders(200, 0);
+            long left = rc.limits.batchSize;
+            int sent = 0;
+            // response is not closed on errors, so portal could detect broken batch
+            final DataOutputStream out = new DataOutputStream(httpExchange.getResponseBody());
+            for (String id : ready) {
+                final File f = new File(folder, String.format("f_%s%s", id, EXT_FILE));
+                // large files are left for usual download, which could be resumed
+                final long length = f.length();
+                if (length == 0 || length > left)
+                    continue;
+                final FileChannel fin;
+                try {
+                    fin = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+                } catch (NoSuchFileException e) {
+                    // already delivered
+                    continue;
+                }
+                try {
+                    out.writeUTF(id);
+                    out.writeLong(length);
+                    if (transferFile(fin, 0, length, out, now -> p.lastSeen = now) != length)
+                        throw TeleportaError.withError(0x6114, f.getAbsolutePath());
+                } finally {
+                    fin.close();
+                }
+                left -= length;
+                sent++;
+            }
+            // end of batch
+            out.writeUTF("");
+            out.close();
+            if (LOG.isLoggable(Level.FINE))
+                LOG.fine(TeleportaMessage.of("teleporta.system.message.batchSent", sent,
+                        rc.limits.batchSize - left));
+        }
+        /**
+         * Reads delivery confirmations from request body
+         * @param in
+         *          request body
+         * @param max
+         *          max body length
+         * @return
+         *      comma-separated file ids
+         * @throws IOException
+         *          on i/o errors or if body is too large
+         */
+        private static String readAcks(InputStream in, int max) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[4096];
+            for (int n; (n = in.read(buf)) > 0; ) {
+                out.write(buf, 0, n);
+                if (out.size() > max)
+                    throw TeleportaError.withError(0x7277);
+            }
+            return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+        }
+    }
+    /**
+     * Uploads segment of large file. Segments are sent in parallel, within resumable upload,
+     * and became visible with the file, when upload is completed.
+     */
+    static class SegmentUploadHandler extends AbstractHandler {
+        SegmentUploadHandler(RelayRuntimeContext rc) {
+            super(rc);
+        }
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            setVersionHeader(httpExchange);
+            if (checkIfNonPostRequest(httpExchange))
+                return;
+            final Map<String, String> params = getQueryParams(httpExchange.getRequestURI());
+            final String from = PK.fromExternal(params.get("from"));
+            final int seg = parseSegment(params.get("seg"));
+            final UploadSession s = rc.uploads.get(params.get("upload"), from);
+            final RuntimePortal p = from != null ? rc.portals.get(from) : null;
+            if (seg < 0) {
+                respondAndClose(400, httpExchange);
+                return;
+            }
+            if (s == null || p == null) {
+                respondAndClose(s == null ? 404 : 403, httpExchange);
+                return;
+            }
+            final File out = segmentFile(s.file.getParentFile(), s.id, seg);
+            try (InputStream in = httpExchange.getRequestBody();
+                 FileChannel fout = FileChannel.open(out.toPath(), StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                final long received = receiveFile(in, fout, p, rc.limits);
+                if (LOG.isLoggable(Level.FINE))
+                    LOG.fine(TeleportaMessage.of("teleporta.system.message.fileUploaded",
+                            out.getAbsolutePath(), received));
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+                if (out.exists() && !out.delete())
+                    LOG.warning(TeleportaError.messageFor(0x6107, out.getAbsolutePath()));
+                respondAndClose(500, httpExchange);
+                return;
+            }
+            s.touched = System.currentTimeMillis();
+            respondAndClose(200, httpExchange);
+        }
+    }
+    /**
+     * Downloads segment of large file.
+     * Segments are removed with the file, when its delivery is confirmed.
+     */
+    static class SegmentDownloadHandler extends AbstractHandler {
+        SegmentDownloadHandler(RelayRuntimeContext rc) {
+            super(rc);
+        }
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            setVersionHeader(httpExchange);
+            final Map<String, String> params = getQueryParams(httpExchange.getRequestURI());
+            final String to = PK.fromExternal(params.get("to")),
+                    fileId = PK.fromExternal(params.get("file"));
+            final int seg = parseSegment(params.get("seg"));
+            if (to == null || fileId == null || seg < 0) {
+                respondAndClose(400, httpExchange);
+                return;
+            }
+            final RuntimePortal p = rc.portals.get(to);
+            if (p == null) {
+                LOG.warning(TeleportaError.messageFor(0x6108, to));
+                respondAndClose(403, httpExchange);
+                return;
+            }
+            final File rFile = segmentFile(new File(rc.storageDir, PK.toExternal(to)),
+                    PK.toExternal(fileId), seg);
+            if (!rFile.exists()) {
+                LOG.warning(TeleportaError.messageFor(0x6114, rFile.getAbsolutePath()));
+                respondAndClose(404, httpExchange);
+                return;
+            }
+            httpExchange.sendResponseHeaders(200, rFile.length());
+            try (OutputStream out = httpExchange.getResponseBody();
+                 FileChannel fin = FileChannel.open(rFile.toPath(), StandardOpenOption.READ)) {
+                transferFile(fin, 0, out, now -> p.lastSeen = now);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            } finally {
+                httpExchange.close();
+            }
+        }
+    }
+    /**
+     * Confirms file delivery. Relay removes file only after this confirmation,
+     * if portal supports resumable downloads.
+     */
+    static class FileAckHandler extends AbstractHandler {
+        FileAckHandler(RelayRuntimeContext rc) {
+            super(rc);
+        }
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            setVersionHeader(httpExchange);
+            final Map<String, String> params = getQueryParams(httpExchange.getRequestURI());
+            final String to = PK.fromExternal(params.get("to")),
+                    fileId = PK.fromExternal(params.get("file"));
+            if (to == null || fileId == null) {
+                respondAndClose(400, httpExchange);
+                return;
+            }
+            if (!rc.portals.contains(to)) {
+                LOG.warning(TeleportaError.messageFor(0x6108, to));
+                respondAndClose(403, httpExchange);
+                return;
+            }
+            final File rFile = new File(new File(rc.storageDir, PK.toExternal(to)),
+                    String.format("f_%s%s", PK.toExternal(fileId), EXT_FILE));
+            if (!rFile.exists()) {
+                respondAndClose(404, httpExchange);
+                return;
+            }
+            removeDelivered(rc, to, fileId, rFile);
+            respondAndClose(200, httpExchange);
+        }
+    }
+    /**
+     * Removes delivered file
+     * @param rc
+     *          relay context
+     * @param to
+     *          target portal
+     * @param fileId
+     *          file id
+     * @param rFile
+     *          stored file
+     */
+    static void removeDelivered(RelayRuntimeContext rc, String to, String fileId, File rFile) {
+        rc.pending.remove(PK.toExternal(to), PK.toExternal(fileId));
+        // content could be stored in blob store
+        rc.blobs.release(to, fileId);
+        // file removal is fast, no need to detach in dedicated thread
+        if (!rFile.delete())
+            LOG.warning(TeleportaError.messageFor(0x6106,
+                    rFile.getAbsolutePath()));
+        removeSegments(rFile.getParentFile(), PK.toExternal(fileId));
+    }
+    /**
+     * Removes files, which delivery is confirmed by portal
+     * @param rc
+     *          relay context
+     * @param to
+     *          target portal
+     * @param ids
+     *          comma-separated file ids, could be null
+     */
+    static void confirmDelivered(RelayRuntimeContext rc, String to, String ids) {
+        if (ids == null || ids.isEmpty())
+            return;
+        final File folder = new File(rc.storageDir, PK.toExternal(to));
+        for (String id : ids.split(",")) {
+            final String fileId = PK.fromExternal(id);
+            if (fileId == null)
+                continue;
+            final File rFile = new File(folder, String.format("f_%s%s",
+                    PK.toExternal(fileId), EXT_FILE));
+            if (rFile.exists())
+                removeDelivered(rc, to, fileId, rFile);
+        }
+    }
+    /**
+     * Get segment file
+     * @param folder
+     *          portal's folder
+     * @param fileId
+     *          file id, in external form
+     * @param seg
+     *          segment number
+     * @return
+     *      segment file
+     */
+    static File segmentFile(File folder, String fileId, int seg) {
+        return new File(folder, String.format("f_%s_%d%s", fileId, seg, EXT_SEGMENT));
+    }
+    /**
+     * Finds all segments of file
+     * @param folder
+     *          portal's folder
+     * @param fileId
+     *          file id, in external form
+     * @return
+     *      segment files, empty if file was not split
+     */
+    static List<File> listSegments(File folder, String fileId) {
+        final List<File> out = new ArrayList<>();
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(folder.toPath(),
+                String.format("f_%s_*%s", fileId, EXT_SEGMENT))) {
+            for (Path e : dirStream)
+                out.add(e.toFile());
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+        return out;
+    }
+    /**
+     * Removes all segments of file
+     * @param folder
+     *          portal's folder
+     * @param fileId
+     *          file id, in external form
+     */
+    static void removeSegments(File folder, String fileId) {
+        for (File f : listSegments(folder, fileId))
+            if (!f.delete())
+                LOG.warning(TeleportaError.messageFor(0x6106, f.getAbsolutePath()));
+    }
+    /**
+     * Parses segment number
+     * @param seg
+     *          segment number, could be null
+     * @return
+     *      segment number or -1, if it's malformed
+     */
+    static int parseSegment(String seg) {
+        try {
+            return seg != null ? Math.max(Integer.parseInt(seg), -1) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    /**
+     * Parses start offset from 'Range' header.
+     * Only 'bytes=N-' form is supported, any other is served as full content.
+     * @param range
+     *          header value, could be null
+     * @param length
+     *          total content length
+     * @return
+     *      start offset, 0 for full content or -1 if offset is beyond content
+     */
+    static long parseRange(String range, long length) {
+        if (range == null || !range.startsWith("bytes=") || !range.endsWith("-"))
+            return 0;
+        try {
+            final long start = Long.parseLong(range.substring("bytes=".length(),
+                    range.length() - 1).trim());
+            return start < 0 ? 0 : start < length ? start : -1;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Checks if file content is already stored in relay's blob store,
+     * so sender could skip upload.
+     */
+    static class BlobCheckHandler extends AbstractHandler {
+        BlobCheckHandler(RelayRuntimeContext rc) {
+            super(rc);
+        }
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            setVersionHeader(httpExchange);
+            final Map<String, String> params = getQueryParams(httpExchange.getRequestURI());
+            final String from = PK.fromExternal(params.get("from")),
+                    blob = params.get("blob");
+            if (from == null || !BlobStore.isValidHash(blob)) {
+                respondAndClose(400, httpExchange);
+                return;
+            }
+            if (!rc.portals.contains(from)) {
+                LOG.warning(TeleportaError.messageFor(0x6108, from));
+                respondAndClose(403, httpExchange);
+                return;
+            }
+            // 200 - have it, 404 - upload required
+            respondAndClose(rc.blobs.has(blob) ? 200 : 404, httpExchange);
+        }
+    }
+    /**
+     * Uploads file content to relay's blob store.
+     * Relay checks that hash of uploaded data matches blob hash.
+     */
+    static class BlobUploadHandler extends AbstractHandler {
+        BlobUploadHandler(RelayRuntimeContext rc) {
+            super(rc);
+        }
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            setVersionHeader(httpExchange);
+            if (checkIfNonPostRequest(httpExchange))
+                return;
+            final Map<String, String> params = getQueryParams(httpExchange.getRequestURI());
+            final String from = PK.fromExternal(params.get("from")),
+                    blob = params.get("blob");
+            if (from == null || !BlobStore.isValidHash(blob)) {
+                respondAndClose(400, httpExchange);
+                return;
+            }
+            final RuntimePortal p = rc.portals.get(from);
+            if (p == null) {
+                LOG.warning(TeleportaError.messageFor(0x6108, from));
+                respondAndClose(403, httpExchange);
+                return;
+            }
+            final File out = rc.blobs.newUpload(blob);
+            boolean verified = false, stored = false;
+            try (DigestInputStream in = new DigestInputStream(httpExchange.getRequestBody(),
+                    MessageDigest.getInstance("SHA-256"));
+                 FileChannel fout = FileChannel.open(out.toPath(),
+                         StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                final long received = receiveFile(in, fout, p, rc.limits);
+                final String hash = toHex(in.getMessageDigest().digest(), 0, 0);
+                verified = blob.equalsIgnoreCase(hash);
+                if (!verified)
+                    LOG.warning(TeleportaError.messageFor(0x7279, blob, hash));
+                if (LOG.isLoggable(Level.FINE))
+                    LOG.fine(TeleportaMessage.of("teleporta.system.message.fileUploaded",
+                            out.getAbsolutePath(), received));
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+            try {
+                // publish only after upload file is closed
+                if (verified)
+                    stored = rc.blobs.commit(blob, out);
+            } finally {
+                if (!stored && out.exists() && !out.delete())
+                    LOG.warning(TeleportaError.messageFor(0x6107, out.getAbsolutePath()));
+            }
+            respondAndClose(stored ? 200 : 400, httpExchange);
+        }
+    }
+    /**
+     * Downloads file content from relay's blob store.
+     * Portal must have a delivery, which references this blob.
+     */
+    static class BlobDownloadHandler extends AbstractHandler {
+        BlobDownloadHandler(RelayRuntimeContext rc) {
+            super(rc);
+        }
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            setVersionHeader(httpExchange);
+            final Map<String, String> params = getQueryParams(httpExchange.getRequestURI());
+            final String to = PK.fromExternal(params.get("to")),
+                    fileId = PK.toExternal(PK.fromExternal(params.get("file"))),
+                    blob = params.get("blob");
+            if (to == null || fileId == null || !BlobStore.isValidHash(blob)) {
+                respondAndClose(400, httpExchange);
+                return;
+            }
+            final RuntimePortal p = rc.portals.get(to);
+            if (p == null) {
+                LOG.warning(TeleportaError.messageFor(0x6108, to));
+                respondAndClose(403, httpExchange);
+                return;
+            }
+            final File data = rc.blobs.open(blob, to, fileId);
+            if (data == null) {
+                LOG.warning(TeleportaError.messageFor(0x6114, blob));
+                respondAndClose(400, httpExchange);
+                return;
+            }
+            // portal, which supports resume, confirms delivery with separate request,
+            // so reference is released only with delivery
+            final boolean ack = hasFeature(p.features, FEATURE_RESUME);
+            boolean complete = false;
+            try (OutputStream out = httpExchange.getResponseBody();
+                 FileChannel fin = FileChannel.open(data.toPath(), StandardOpenOption.READ)) {
+                final long length = fin.size();
+                httpExchange.sendResponseHeaders(200, length);
+                final long sent = transferFile(fin, 0, out, now -> p.lastSeen = now);
+                complete = sent == length;
+                if (LOG.isLoggable(Level.FINE))
+                    LOG.fine(TeleportaMessage.of("teleporta.system.message.fileDownloaded",
+                            data.getAbsolutePath(), sent));
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            } finally {
+                // failed transfer keeps reference, it will be removed by purge
+                if (complete && !ack)
+                    rc.blobs.release(blob, to, fileId);
+                httpExchange.close();
+            }
+        }
+    }
+    /**
+     * Abstract shared handler, contains some useful stuff.
+     */
+    abstract static class AbstractHandler implements HttpHandler {
+        protected final TeleCrypt tc = new TeleCrypt();
+        protected final RelayRuntimeContext rc;
+        AbstractHandler(RelayRuntimeContext rc) {
+            this.rc = rc;
+        }
+        /**
+         * Extract query params from URL
+         *
+         * @param u url
+         * @return key-value pairs with provided params
+         */
+        Map<String, String> getQueryParams(URI u) {
+            if (u == null || u.getQuery() == null)
+                return Collections.emptyMap();
+
+            final String query = u.getQuery().toLowerCase().trim();
+            if (query.isEmpty())
+                return Collections.emptyMap();
+
+            final Map<String, String> qp = new LinkedHashMap<>();
+            final String[] pairs = query.split("&");
+            for (String pair : pairs) {
+                try {
+                    final int idx = pair.indexOf("=");
+                    final String key = idx > 0 ?
+                            URLDecoder.decode(pair.substring(0, idx),
+                                    String.valueOf(StandardCharsets.UTF_8)) : pair;
+                    final String value = idx > 0 && pair.length() > idx + 1 ?
+                            URLDecoder.decode(pair.substring(idx + 1),
+                                    String.valueOf(StandardCharsets.UTF_8)) : null;
+                    qp.put(key, value);
+                } catch (UnsupportedEncodingException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                    return Collections.emptyMap();
+                }
+            }
+            return qp;
+        }
+        /**
+         * Checks source and target portals of upload. Responds error, if check failed
+         * @param from
+         *          source portal (internal id)
+         * @param to
+         *          target portals, separated by comma
+         * @param exchange
+         *          current exchange
+         * @return
+         *      target portals (internal ids) or null, if request was rejected
+         * @throws IOException
+         *          on i/o errors
+         */
+        protected List<String> checkUploadPortals(String from, String to,
+                                                  HttpExchange exchange) throws IOException {
+            final List<String> recipients = parseRecipients(to);
+            // broken or malformed portal IDs
+            if (from==null || recipients==null) {
+                respondAndClose(400, exchange);
+                return null;
+            }
+            if (!rc.portals.contains(from)) {
+                LOG.warning(TeleportaError.messageFor(0x6108, from));
+                respondAndClose(403, exchange);
+                return null;
+            }
+            for (String r : recipients)
+                if (!rc.portals.contains(r)) {
+                    LOG.warning(TeleportaError.messageFor(0x6108, r));
+                    respondAndClose(403, exchange);
+                    return null;
+                }
+            if (LOG.isLoggable(Level.FINE))
+                LOG.fine(TeleportaMessage.of("teleporta.system.message.fromTo", from,
+                        String.join(",", recipients)));
+            return recipients;
+        }
+        /**
+         * Checks that current request is not POST
+         * We allow only POST for some endpoints.
+         *
+         * @param exchange current http context
+         * @return true if this request is not POST
+         * false - otherwise
+         */
+        protected boolean checkIfNonPostRequest(HttpExchange exchange) throws IOException {
+            if ("POST".equalsIgnoreCase(exchange.getRequestMethod()))
+                return false;
+            respondAndClose(400, exchange);
+            return true;
+        }
+        /**
+         * Set Teleporta version header on relay side
+         *
+         * @param exchange
+         */
+        protected void setVersionHeader(HttpExchange exchange) {
+            exchange.getResponseHeaders().set("Server", "Teleporta Relay/" +
+                    (rc.respondVersion ? SystemInfo.SI.getBuildVersion() : "Unknown"));
+        }
+        /**
+         * Checks if portal supports binary codec and marks response, if so.
+         * Must be called before response headers are sent.
+         * @param exchange
+         *          current http exchange
+         * @return
+         *      true if response must be encoded with binary codec
+         */
+        protected boolean useBinaryCodec(HttpExchange exchange) {
+            if (!TeleCodec.isSupported(exchange.getRequestHeaders().getFirst(TeleCodec.HEADER)))
+                return false;
+            exchange.getResponseHeaders().set(TeleCodec.HEADER, String.valueOf(TeleCodec.VERSION));
+            return true;
+        }
+        /**
+         * Respond unencrypted properties to http stream
+         *
+         * @param props    filled properties object
+         * @param exchange HttpExchange instance
+         */
+        protected void respondProperties(Properties props, HttpExchange exchange) {
+            try (CountingOutputStream os = new CountingOutputStream(exchange.getResponseBody())) {
+                final boolean binary = useBinaryCodec(exchange);
+                exchange.sendResponseHeaders(200, 0);
+                TeleCodec.store(props, os, binary);
+                os.flush();
+                if (LOG.isLoggable(Level.FINE))
+                    LOG.fine(TeleportaMessage.of("teleporta.system.message.bytesSent",
+                            os.getCount()));
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            } finally {
+                exchange.close();
+            }
+        }
+        /**
+         * Respond properties to portal, in session mode if possible.
+         * If portal's session key is outdated or portal sent another key id,
+         *  current key is sent inside legacy packet, wrapped by portal's public key.
+         * @param p
+         *          target portal
+         * @param keyId
+         *          session key id, sent by portal. Could be null
+         * @param props
+         *          data to respond
+         * @param exchange
+         *          current http exchange
+         */
+        protected void respondEncryptedProperties(RuntimePortal p, String keyId,
+                                                  Properties props,
+                                                  HttpExchange exchange) {
+            respondEncryptedProperties(p, keyId, props, null, exchange);
+        }
+        /**
+         * Respond properties and embedded files to portal
+         * @param p
+         *          target portal
+         * @param keyId
+         *          session key id, known by portal. Could be null
+         * @param props
+         *          data to respond
+         * @param inline
+         *          files, embedded into response. If null - response has only properties
+         * @param exchange
+         *          current http exchange
+         */
+        protected void respondEncryptedProperties(RuntimePortal p, String keyId,
+                                                  Properties props,
+                                                  Map<String, byte[]> inline,
+                                                  HttpExchange exchange) {
+            SessionKey s = p.session;
+            // legacy portal
+            if (s == null) {
+                respondEncryptedProperties(p.id, p.publicKey, props, inline, exchange);
+                return;
+            }
+            final boolean outdated = System.currentTimeMillis() - s.created > rc.limits.sessionRekey;
+            if (!outdated && s.id.equals(keyId)) {
+                respondSessionProperties(s, props, inline, exchange);
+                return;
+            }
+            if (outdated) {
+                try {
+                    // note: concurrent rekeying is ok, portal will get latest key on next request
+                    s = new SessionKey(String.valueOf(generateUniqueID()), tc.generateFileKey());
+                    p.session = s;
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+            // packet data is encrypted, so key is passed as is
+            props.setProperty("sessionKey", toHex(s.key.getEncoded(), 0, 0));
+            props.setProperty("sessionKeyId", s.id);
+            respondEncryptedProperties(p.id, p.publicKey, props, inline, exchange);
+        }
+        /**
+         * Respond properties, encrypted with shared session key.
+         * No RSA operations there.
+         * @param s
+         *          session key
+         * @param props
+         *          data to respond
+         * @param inline
+         *          embedded files, could be null
+         * @param exchange
+         *          current http exchange
+         */
+        protected void respondSessionProperties(SessionKey s,
+                                                Properties props,
+                                                Map<String, byte[]> inline,
+                                                HttpExchange exchange) {
+            try (CountingOutputStream os = new CountingOutputStream(exchange.getResponseBody());
+                 ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+                final boolean binary = useBinaryCodec(exchange);
+                exchange.sendResponseHeaders(200, 0);
+                os.write(AbstractClient.TELEPORTA_SESSION_PACKET_HEADER);
+                TeleCodec.store(props, baos, binary);
+                try (ByteArrayInputStream in = new ByteArrayInputStream(inline != null ?
+                        writeInlined(baos.toByteArray(), inline) : baos.toByteArray())) {
+                    tc.encryptData(s.key, in, os);
+                }
+                os.flush();
+                if (LOG.isLoggable(Level.FINE))
+                    LOG.fine(TeleportaMessage.of("teleporta.system.message.bytesSent",
+                            os.getCount()));
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            } finally {
+                exchange.close();
+            }
+        }
+        /**
+         * Respond Properties file with encryption
+         *
+         * @param portalId portal (client) id, used to cache parsed key
+         * @param portalPk portal (client) public key
+         * @param props    properties object
+         * @param exchange current http exchange context
+         */
+        protected void respondEncryptedProperties(String portalId, String portalPk,
+                                                  Properties props,
+                                                  HttpExchange exchange) {
+            respondEncryptedProperties(portalId, portalPk, props, null, exchange);
+        }
+        /**
+         * Respond Properties file and embedded files with encryption
+         *
+         * @param portalId portal (client) id, used to cache parsed key
+         * @param portalPk portal (client) public key
+         * @param props    properties object
+         * @param inline   embedded files, could be null
+         * @param exchange current http exchange context
+         */
+        protected void respondEncryptedProperties(String portalId, String portalPk,
+                                                  Properties props,
+                                                  Map<String, byte[]> inline,
+                                                  HttpExchange exchange) {
+            try (CountingOutputStream os = new CountingOutputStream(exchange.getResponseBody());
+                 ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+                final boolean binary = useBinaryCodec(exchange);
+                exchange.sendResponseHeaders(200, 0);
+                os.write(AbstractClient.TELEPORTA_PACKET_HEADER);
+                // generate new session key (AES)
+                final SecretKey sk = tc.generateFileKey();
+                // restore public key
+                final PublicKey pk = tc.restorePublicKey(portalId, portalPk);
+                // encrypt session key with public key
+                final byte[] enc = tc.encryptKey(sk.getEncoded(), pk);
+                // write encrypted key
+                os.write(enc);
+                // store properties data into byte array
+                TeleCodec.store(props, baos, binary);
+                // now encrypt stored data and push it to client
+                try (ByteArrayInputStream in = new ByteArrayInputStream(inline != null ?
+                        writeInlined(baos.toByteArray(), inline) : baos.toByteArray())) {
+                    tc.encryptData(sk, in, os);
+                }
+                os.flush();
+                if (LOG.isLoggable(Level.FINE))
+                    LOG.fine(TeleportaMessage.of("teleporta.system.message.bytesSent",
+                            os.getCount()));
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            } finally {
+                exchange.close();
+            }
+        }
+        /**
+         * Respond 400 Bad Request
+         * This is used as universal 'bad request' answer.
+         *
+         * @param exchange current http exchange context
+         */
+        protected void respondAndClose(int httpError,
+                                       HttpExchange exchange) throws IOException {
+            exchange.sendResponseHeaders(httpError, 0);
+            exchange.close();
+        }
+    }
+    /**
+     * DTO to store portal details
+     */
+    static class RuntimePortal extends RegisteredPortal {
+        final String id; // portal id, assigned by relay
+        volatile long lastSeen, // last seen this portal online
+                filesEvent, // incremented each time new file arrives for this portal
+                ackedFilesEvent = -1, // last files event, responded to portal
+                portalsEpoch, // registry version, last loaded by this portal
+                clipboardEpoch; // clipboard update, last loaded by this portal
+        volatile SessionKey session; // shared session key, null if portal does not support session mode
+        // polls, waiting for events of this portal
+        final Set<ParkedPoll> waiting = ConcurrentHashMap.newKeySet();
+        RuntimePortal(String id, String name, String publicKey, String features) {
+            super(name, publicKey, features);
+            this.id = id;
+        }
+        /**
+         * Checks if there are any events, not yet responded to portal
+         * @param r
+         *          portals registry, holds global epochs
+         * @return
+         *      true if portal should be answered immediately
+         */
+        boolean hasEvents(PortalRegistry r) {
+            return portalsEpoch != r.version() || clipboardEpoch != r.clipboardEpoch()
+                    || filesEvent != ackedFilesEvent;
+        }
+        /**
+         * Wake up waiting polls (if any)
+         */
+        void signal() {
+            for (ParkedPoll w : waiting)
+                w.resume();
+        }
+        void fileArrived() {
+            synchronized (this) {
+                filesEvent++;
+            }
+            signal();
+        }
+    }
+    /**
+     * Registry of portals, connected to relay.
+     * Lookups are lock-free, iteration is weakly consistent: it never throws and
+     * reflects state at some point since iteration start.
+     * Changes, which touch both ids and names are atomic.
+     */
+    static class PortalRegistry {
+        private final Map<String, RuntimePortal> portals = new ConcurrentHashMap<>(); // id -> portal
+        private final Map<String, String> names = new ConcurrentHashMap<>(); // name -> id
+        // recent changes, oldest first. Used to respond only changed portals
+        private final ArrayDeque<RegistryChange> changes = new ArrayDeque<>();
+        private final int maxChanges; // max stored changes
+        private volatile long version, // incremented on each change
+                clipboardEpoch; // incremented on each clipboard update
+        // portals, waiting in long-poll, with number of waiting requests
+        private final Map<RuntimePortal, Integer> parked = new ConcurrentHashMap<>();
+        PortalRegistry(int maxChanges) {
+            this.maxChanges = maxChanges;
+        }
+        RuntimePortal get(String id) {
+            return id == null ? null : portals.get(id);
+        }
+        boolean contains(String id) {
+            return id != null && portals.containsKey(id);
+        }
+        /**
+         * Finds portal id by its name
+         * @param name
+         *          portal name
+         * @return
+         *          portal id or null if not found
+         */
+        String idOf(String name) {
+            return name == null ? null : names.get(name);
+        }
+        int size() {
+            return portals.size();
+        }
+        boolean isEmpty() {
+            return portals.isEmpty();
+        }
+        /**
+         * @return current registry version
+         */
+        long version() {
+            return version;
+        }
+        /**
+         * @return current clipboard epoch
+         */
+        long clipboardEpoch() {
+            return clipboardEpoch;
+        }
+        /**
+         * Collects portals, changed since provided version
+         * @param since
+         *          registry version, known by portal
+         * @param changed
+         *          changed portal ids, with 'removed' flag
+         * @return
+         *      current version or -1, if changes are not available anymore
+         *      and full list must be sent
+         */
+        synchronized long changesSince(long since, Map<String, Boolean> changed) {
+            // unknown version, probably from before relay restart
+            if (since < 0 || since > version)
+                return -1;
+            if (since == version)
+                return version;
+            // too old, some changes are already dropped
+            if (changes.isEmpty() || changes.peekFirst().version > since + 1)
+                return -1;
+            for (RegistryChange c : changes)
+                if (c.version > since)
+                    // latest change wins
+                    changed.put(c.id, c.removed);
+            return version;
+        }
+        private void changed(String id, boolean removed) {
+            changes.addLast(new RegistryChange(++version, id, removed));
+            if (changes.size() > maxChanges)
+                changes.removeFirst();
+        }
+        /**
+         * @return read-only view on registered portal names
+         */
+        Set<String> names() {
+            return Collections.unmodifiableSet(names.keySet());
+        }
+        /**
+         * @return read-only view on registered portals, by id
+         */
+        Set<Map.Entry<String, RuntimePortal>> entries() {
+            return Collections.unmodifiableMap(portals).entrySet();
+        }
+        /**
+         * Registers new portal or refreshes session for existing one
+         * @param currentId
+         *          id, provided by portal. Will be re-used if not taken
+         * @param name
+         *          unique portal name
+         * @param publicKey
+         *          portal's public key
+         * @param features
+         *          features, supported by portal. Could be null
+         * @param allowKeyUpdate
+         *          if true - existing portal with same name will get new public key
+         * @return
+         *          portal id or null, if name is already taken by portal with another key
+         */
+        synchronized String register(String currentId, String name,
+                                     String publicKey, String features,
+                                     boolean allowKeyUpdate) {
+            final String existingId = names.get(name);
+            if (existingId != null) {
+                final RuntimePortal p = portals.get(existingId);
+                // allow session replacement for same public key
+                if (p.publicKey.equals(publicKey)) {
+                    // portal could be restarted with another version
+                    if (!Objects.equals(p.features, features)) {
+                        p.features = features;
+                        changed(existingId, false);
+                        p.portalsEpoch = version;
+                        wakeParked();
+                    }
+                    return existingId;
+                }
+                // mostly for testing
+                if (!allowKeyUpdate)
+                    return null;
+                p.publicKey = publicKey;
+                p.features = features;
+                // parsed old key is not valid anymore
+                TeleCrypt.forgetPublicKey(existingId);
+                changed(existingId, false);
+                // skip self, notify all other portals to reload list from relay
+                p.portalsEpoch = version;
+                wakeParked();
+                return existingId;
+            }
+            // re-use old session id (if provided) or generate unique ID
+            final String id = currentId == null
+                    // disallow duplicates
+                    || portals.containsKey(currentId) ? PK.generate() :
+                    // mean that relay has been restarted and lost all sessions
+                    currentId;
+            final RuntimePortal p = new RuntimePortal(id, name, publicKey, features);
+            portals.put(id, p);
+            names.put(name, id);
+            changed(id, false);
+            // new portal loads full list and ignores previous clipboard data
+            p.portalsEpoch = version;
+            p.clipboardEpoch = clipboardEpoch;
+            // inform all other portals to reload portals list
+            wakeParked();
+            if (LOG.isLoggable(Level.FINE))
+                LOG.fine(TeleportaMessage
+                        .of("teleporta.system.message.portalRegistered", id));
+            return id;
+        }
+        /**
+         * Removes portals, not seen online for a while
+         * @param timeout
+         *          max time since portal was seen last time, in milliseconds
+         * @return
+         *          removed portals
+         */
+        synchronized List<RegisteredPortal> expire(long timeout) {
+            final long now = System.currentTimeMillis();
+            final List<RegisteredPortal> expired = new ArrayList<>();
+            for (Iterator<Map.Entry<String, RuntimePortal>> it = portals.entrySet().iterator();
+                 it.hasNext(); ) {
+                final Map.Entry<String, RuntimePortal> e = it.next();
+                if (now - e.getValue().lastSeen <= timeout)
+                    continue;
+                it.remove();
+                names.remove(e.getValue().name, e.getKey());
+                TeleCrypt.forgetPublicKey(e.getKey());
+                changed(e.getKey(), true);
+                expired.add(e.getValue());
+            }
+            // notify all other about removal
+            if (!expired.isEmpty())
+                wakeParked();
+            return expired;
+        }
+        /**
+         * Notifies all portals about new clipboard data.
+         * Just increments epoch, so it does not depend on number of portals
+         * @param from
+         *          portal id to skip (clipboard source), could be null
+         */
+        synchronized void notifyClipboard(String from) {
+            clipboardEpoch++;
+            final RuntimePortal src = get(from);
+            if (src != null)
+                src.clipboardEpoch = clipboardEpoch;
+            wakeParked();
+        }
+        /**
+         * Parks poll till some event for portal happens or timeout expires.
+         * Only waiting portals are woken up on registry or clipboard changes.
+         * No thread is blocked while poll waits.
+         * @param p
+         *          portal
+         * @param timeout
+         *          max wait time, in milliseconds
+         * @param executor
+         *          executor to run task
+         * @param task
+         *          task to run on event or timeout, runs exactly once
+         */
+        void park(RuntimePortal p, long timeout, Executor executor, Runnable task) {
+            final ParkedPoll w = new ParkedPoll(p, executor, () -> {
+                parked.computeIfPresent(p, (k, v) -> v > 1 ? v - 1 : null);
+                task.run();
+            });
+            parked.merge(p, 1, Integer::sum);
+            p.waiting.add(w);
+            w.timer = ses.schedule(w::resume, timeout, TimeUnit.MILLISECONDS);
+            // event could happen before poll was parked
+            if (p.hasEvents(this))
+                w.resume();
+        }
+        private void wakeParked() {
+            for (RuntimePortal p : parked.keySet())
+                p.signal();
+        }
+    }
+    /**
+     * Poll request, waiting for portal events
+     */
+    static class ParkedPoll {
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final RuntimePortal p;
+        private final Executor executor;
+        private final Runnable task;
+        volatile ScheduledFuture<?> timer; // timeout
+        ParkedPoll(RuntimePortal p, Executor executor, Runnable task) {
+            this.p = p;
+            this.executor = executor;
+            this.task = task;
+        }
+        /**
+         * Resumes poll: first call wins, all others are ignored
+         */
+        void resume() {
+            if (!done.compareAndSet(false, true))
+                return;
+            p.waiting.remove(this);
+            final ScheduledFuture<?> t = timer;
+            if (t != null)
+                t.cancel(false);
+            executor.execute(task);
+        }
+    }
+    /**
+     * Registry change record
+     */
+    static class RegistryChange {
+        final long version; // registry version after change
+        final String id; // changed portal id
+        final boolean removed; // true if portal was removed
+        RegistryChange(long version, String id, boolean removed) {
+            this.version = version;
+            this.id = id;
+            this.removed = removed;
+        }
+    }
+    /**
+     * Index of ready to download files, for each portal.
+     * Allows to respond pending files without directory scans on each poll.
+     * Portals and files are stored in external form, same as on disk.
+     */
+    static class PendingFiles {
+        // portal id -> file id -> time, when file became ready. In arrival order
+        private final Map<String, LinkedHashMap<String, Long>> files = new ConcurrentHashMap<>();
+        /**
+         * Adds ready file to index
+         * @param portal
+         *          target portal id
+         * @param fileId
+         *          file id
+         */
+        void add(String portal, String fileId) {
+            add(portal, fileId, System.currentTimeMillis());
+        }
+        private void add(String portal, String fileId, long time) {
+            final LinkedHashMap<String, Long> f = files.computeIfAbsent(portal,
+                    k -> new LinkedHashMap<>());
+            synchronized (f) {
+                f.put(fileId, time);
+            }
+        }
+        /**
+         * Removes file from index
+         * @param portal
+         *          target portal id
+         * @param fileId
+         *          file id
+         */
+        void remove(String portal, String fileId) {
+            final LinkedHashMap<String, Long> f = files.get(portal);
+            if (f == null)
+                return;
+            synchronized (f) {
+                f.remove(fileId);
+            }
         }
         /**
-         * Set Teleporta version header on relay side
-         *
-         * @param exchange
+         * Get first ready files for portal
+         * @param portal
+         *          portal id
+         * @param limit
+         *          max number of files
+         * @return
+         *      list of file ids, in arrival order
          */
-        protected void setVersionHeader(HttpExchange exchange) {
-            exchange.getResponseHeaders().set("Server", "Teleporta Relay/" +
-                    (rc.respondVersion ? SystemInfo.SI.getBuildVersion() : "Unknown"));
+        List<String> list(String portal, int limit) {
+            final LinkedHashMap<String, Long> f = files.get(portal);
+            if (f == null)
+                return new ArrayList<>();
+            final List<String> out = new ArrayList<>(Math.min(limit, 16));
+            synchronized (f) {
+                for (String id : f.keySet()) {
+                    if (out.size() >= limit)
+                        break;
+                    out.add(id);
+                }
+            }
+            return out;
         }
         /**
-         * Respond unencrypted properties to http stream
-         *
-         * @param props    filled properties object
-         * @param exchange HttpExchange instance
+         * Get files, which became ready before provided time
+         * @param time
+         *          time mark
+         * @param limit
+         *          max number of files
+         * @return
+         *      map of portal id to list of file ids
          */
-        protected void respondProperties(Properties props, HttpExchange exchange) {
-            try (CountingOutputStream os = new CountingOutputStream(exchange.getResponseBody())) {
-                exchange.sendResponseHeaders(200, 0);
-                props.store(os, "");
-                os.flush();
-                if (LOG.isLoggable(Level.FINE))
-                    LOG.fine(TeleportaMessage.of("teleporta.system.message.bytesSent",
-                            os.getCount()));
-            } catch (Exception e) {
-                LOG.log(Level.WARNING, e.getMessage(), e);
+        Map<String, List<String>> olderThan(long time, int limit) {
+            final Map<String, List<String>> out = new HashMap<>();
+            int count = 0;
+            for (Map.Entry<String, LinkedHashMap<String, Long>> e : files.entrySet()) {
+                final LinkedHashMap<String, Long> f = e.getValue();
+                synchronized (f) {
+                    for (Map.Entry<String, Long> ff : f.entrySet()) {
+                        // files are in arrival order, so all next are newer
+                        if (ff.getValue() >= time || count >= limit)
+                            break;
+                        out.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).add(ff.getKey());
+                        count++;
+                    }
+                }
+            }
+            return out;
+        }
+        /**
+         * Rebuilds index from relay's storage folder.
+         * Called once, on relay start.
+         * @param storageDir
+         *          relay storage folder
+         */
+        void rebuild(File storageDir) {
+            files.clear();
+            final File[] portals = storageDir.listFiles(File::isDirectory);
+            if (portals == null)
+                return;
+            int count = 0;
+            for (File pf : portals) {
+                final List<File> ready = new ArrayList<>();
+                try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(pf.toPath(),
+                        "f_*" + EXT_FILE)) {
+                    for (Path e : dirStream)
+                        ready.add(e.toFile());
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                    continue;
+                }
+                // keep arrival order
+                ready.sort(Comparator.comparingLong(File::lastModified));
+                for (File f : ready) {
+                    final String name = f.getName();
+                    add(pf.getName(), name.substring("f_".length(),
+                            name.length() - EXT_FILE.length()), f.lastModified());
+                    count++;
+                }
+            }
+            if (LOG.isLoggable(Level.FINE))
+                LOG.fine(TeleportaMessage.of("teleporta.system.message.foundPendingFiles", count));
+        }
+    }
+    /**
+     * Resumable upload, in progress
+     */
+    static class UploadSession {
+        final String id, // upload id, also used as file id
+                from; // source portal
+        final List<String> recipients; // target portals
+        final File file; // uploaded data
+        long offset; // committed offset, guarded by session lock
+        volatile long touched = System.currentTimeMillis(); // last activity
+        // live upload is listed to recipients before completion, so they could download
+        // data as it arrives. Separate lock is used, so readers don't wait for uploader.
+        // Not a monitor: virtual threads, waiting on monitor, stay pinned to carrier thread
+        private final ReentrantLock progress = new ReentrantLock();
+        private final Condition changed = progress.newCondition();
+        private long committed; // data length, which could be read by recipients
+        private int state; // 0 - in progress, 1 - completed, -1 - failed
+        private int readers; // live downloads, which have data file opened now
+        private boolean closing; // upload is being completed, data file will be renamed
+        volatile boolean live, // true if upload is listed to recipients
+                receiving; // true while chunk is received, set under session lock
+        UploadSession(String id, String from, List<String> recipients, File file) {
+            this.id = id;
+            this.from = from;
+            this.recipients = recipients;
+            this.file = file;
+            // there could be data, left from previous run
+            this.offset = file.length();
+        }
+        /**
+         * Publishes received data to recipients
+         * @param length
+         *          committed data length
+         * @param complete
+         *          true if upload is completed
+         */
+        void commit(long length, boolean complete) {
+            progress.lock();
+            try {
+                committed = length;
+                if (complete)
+                    state = 1;
+                changed.signalAll();
             } finally {
-                exchange.close();
+                progress.unlock();
             }
         }
         /**
-         * Respond Properties file with encryption
-         *
-         * @param portalPk portal (client) public key
-         * @param props    properties object
-         * @param exchange current http exchange context
+         * Marks upload as failed, recipients stop waiting for data
          */
-        protected void respondEncryptedProperties(String portalPk,
-                                                  Properties props,
-                                                  HttpExchange exchange) {
-            try (CountingOutputStream os = new CountingOutputStream(exchange.getResponseBody());
-                 ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                exchange.sendResponseHeaders(200, 0);
-                os.write(AbstractClient.TELEPORTA_PACKET_HEADER);
-                // generate new session key (AES)
-                final SecretKey sk = tc.generateFileKey();
-                // restore public key
-                final PublicKey pk = tc.restorePublicKey(fromHex(portalPk));
-                // encrypt session key with public key
-                final byte[] enc = tc.encryptKey(sk.getEncoded(), pk);
-                // write encrypted key
-                os.write(enc);
-                // store properties data into byte array
-                props.store(baos, "");
-                // now encrypt stored data and push it to client
-                try (ByteArrayInputStream in = new ByteArrayInputStream(baos.toByteArray())) {
-                    tc.encryptData(sk, in, os);
+        void fail() {
+            progress.lock();
+            try {
+                if (state == 0)
+                    state = -1;
+                changed.signalAll();
+            } finally {
+                progress.unlock();
+            }
+        }
+        /**
+         * Waits till data after provided position is committed
+         * @param position
+         *          position in uploaded data
+         * @param timeout
+         *          max wait time, in milliseconds
+         * @return
+         *      committed data length, which is greater than position or
+         *      equal if upload is completed. -1 if upload failed or timeout expired
+         * @throws InterruptedException
+         *          if waiting thread was interrupted
+         */
+        long awaitData(long position, long timeout) throws InterruptedException {
+            long left = TimeUnit.MILLISECONDS.toNanos(timeout);
+            progress.lock();
+            try {
+                while (committed <= position && state == 0) {
+                    if (left <= 0)
+                        return -1;
+                    left = changed.awaitNanos(left);
                 }
-                os.flush();
-                if (LOG.isLoggable(Level.FINE))
-                    LOG.fine(TeleportaMessage.of("teleporta.system.message.bytesSent",
-                            os.getCount()));
-            } catch (Exception e) {
-                LOG.log(Level.WARNING, e.getMessage(), e);
+                return state < 0 ? -1 : committed;
             } finally {
-                exchange.close();
+                progress.unlock();
             }
         }
         /**
-         * Respond 400 Bad Request
-         * This is used as universal 'bad request' answer.
-         *
-         * @param exchange current http exchange context
+         * Registers reader of data file. If upload is being completed, waits till it's done
+         * @param timeout
+         *          max wait time, in milliseconds
+         * @return
+         *      true if data file could be opened, false if upload is completed or failed
+         * @throws InterruptedException
+         *          if waiting thread was interrupted
          */
-        protected void respondAndClose(int httpError,
-                                       HttpExchange exchange) throws IOException {
-            exchange.sendResponseHeaders(httpError, 0);
-            exchange.close();
+        boolean startRead(long timeout) throws InterruptedException {
+            long left = TimeUnit.MILLISECONDS.toNanos(timeout);
+            progress.lock();
+            try {
+                while (closing && state == 0 && left > 0)
+                    left = changed.awaitNanos(left);
+                if (closing)
+                    return false;
+                readers++;
+                return true;
+            } finally {
+                progress.unlock();
+            }
+        }
+        /**
+         * Unregisters reader, after data file is closed
+         */
+        void endRead() {
+            progress.lock();
+            try {
+                readers--;
+                changed.signalAll();
+            } finally {
+                progress.unlock();
+            }
+        }
+        /**
+         * Stops new reads and waits till live downloads close data file, so it could be renamed
+         * @param timeout
+         *          max wait time, in milliseconds
+         * @throws InterruptedException
+         *          if waiting thread was interrupted
+         */
+        void awaitReaders(long timeout) throws InterruptedException {
+            long left = TimeUnit.MILLISECONDS.toNanos(timeout);
+            progress.lock();
+            try {
+                closing = true;
+                while (readers > 0 && left > 0)
+                    left = changed.awaitNanos(left);
+            } finally {
+                progress.unlock();
+            }
         }
     }
     /**
-     * DTO to store portal details
+     * Resumable uploads, in progress.
+     * Data is stored in usual .upload file, in first recipient's folder, so committed offset
+     * survives relay restart. Session details are stored near, in .session file.
      */
-    static class RuntimePortal extends RegisteredPortal {
-        boolean needReloadPortals, // if true - this portal must reload portals list from relay
-                needLoadClipboard;  // if true - this portal must load clipboard file
-        long lastSeen; // last seen this portal online
-        RuntimePortal(String name, String publicKey) {
-            super(name, publicKey);
+    static class UploadSessions {
+        static final String EXT_SESSION = ".session";
+        private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+        // uploads, listed to recipients before completion
+        private final Set<UploadSession> live = ConcurrentHashMap.newKeySet();
+        /**
+         * Starts new upload
+         * @param storageDir
+         *          relay storage folder
+         * @param from
+         *          source portal
+         * @param recipients
+         *          target portals
+         * @return
+         *      new upload session
+         * @throws IOException
+         *          on i/o errors
+         */
+        UploadSession start(File storageDir, String from, List<String> recipients) throws IOException {
+            final String id = String.valueOf(generateUniqueID());
+            final File folder = new File(storageDir, PK.toExternal(recipients.get(0)));
+            checkCreateFolder(folder);
+            final UploadSession s = new UploadSession(id, from, recipients,
+                    new File(folder, String.format("f_%s%s", id, EXT_UPLOAD)));
+            Files.createFile(s.file.toPath());
+            final Properties props = new Properties();
+            props.setProperty("from", PK.toExternal(from));
+            final List<String> to = new ArrayList<>();
+            for (String r : recipients)
+                to.add(PK.toExternal(r));
+            props.setProperty("to", String.join(",", to));
+            try (OutputStream out = Files.newOutputStream(sessionFile(s).toPath())) {
+                props.store(out, "");
+            }
+            sessions.put(id, s);
+            return s;
+        }
+        /**
+         * Get upload session
+         * @param id
+         *          upload id
+         * @param from
+         *          source portal, must be same as for started upload
+         * @return
+         *      session or null if not found
+         */
+        UploadSession get(String id, String from) {
+            final UploadSession s = id != null ? sessions.get(id) : null;
+            return s != null && s.from.equals(from) ? s : null;
+        }
+        /**
+         * Get live upload, which could be downloaded by provided portal
+         * @param id
+         *          upload id
+         * @param to
+         *          target portal
+         * @return
+         *      session or null if not found or not live
+         */
+        UploadSession getLive(String id, String to) {
+            final UploadSession s = id != null ? sessions.get(id) : null;
+            return s != null && s.live && s.recipients.contains(to) ? s : null;
+        }
+        /**
+         * Lists live uploads for provided portal
+         * @param to
+         *          target portal
+         * @param activeSince
+         *          uploads without activity since this time are stalled and not listed
+         * @param out
+         *          list to add upload ids
+         * @param limit
+         *          max size of list
+         */
+        void listLive(String to, long activeSince, List<String> out, int limit) {
+            for (UploadSession s : live) {
+                if (out.size() >= limit)
+                    return;
+                if (s.touched >= activeSince && s.recipients.contains(to) && !out.contains(s.id))
+                    out.add(s.id);
+            }
+        }
+        /**
+         * Makes upload visible to recipients, before it's completed
+         * @param s
+         *          upload session
+         */
+        void goLive(UploadSession s) {
+            s.live = true;
+            live.add(s);
+        }
+        /**
+         * Removes completed upload session
+         * @param s
+         *          upload session
+         */
+        void finish(UploadSession s) {
+            sessions.remove(s.id);
+            live.remove(s);
+            final File f = sessionFile(s);
+            if (f.exists() && !f.delete())
+                LOG.warning(TeleportaError.messageFor(0x6107, f.getAbsolutePath()));
+        }
+        /**
+         * Removes abandoned uploads
+         * @param olderThan
+         *          last activity time
+         */
+        void expire(long olderThan) {
+            for (UploadSession s : sessions.values()) {
+                synchronized (s) {
+                    // chunk in progress means upload is still active
+                    if (s.touched >= olderThan || s.receiving)
+                        continue;
+                    finish(s);
+                    s.fail();
+                    if (s.file.exists() && !s.file.delete())
+                        LOG.warning(TeleportaError.messageFor(0x6107, s.file.getAbsolutePath()));
+                    removeSegments(s.file.getParentFile(), s.id);
+                }
+                if (LOG.isLoggable(Level.FINE))
+                    LOG.fine(TeleportaMessage.of("teleporta.system.message.removedExpiredNonDeliveredFile",
+                            s.file.getAbsolutePath()));
+            }
+        }
+        /**
+         * Loads uploads, left from previous run
+         * @param storageDir
+         *          relay storage folder
+         */
+        void rebuild(File storageDir) {
+            sessions.clear();
+            live.clear();
+            final File[] portals = storageDir.listFiles(File::isDirectory);
+            if (portals == null)
+                return;
+            for (File pf : portals) {
+                final File[] files = pf.listFiles((dir, name) -> name.endsWith(EXT_SESSION));
+                if (files == null)
+                    continue;
+                for (File f : files) {
+                    final String n = f.getName(),
+                            id = n.substring("f_".length(), n.length() - EXT_SESSION.length());
+                    final File data = new File(pf, String.format("f_%s%s", id, EXT_UPLOAD));
+                    final Properties props = new Properties();
+                    try (InputStream in = Files.newInputStream(f.toPath())) {
+                        props.load(in);
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, e.getMessage(), e);
+                        continue;
+                    }
+                    final String from = PK.fromExternal(props.getProperty("from"));
+                    final List<String> recipients = parseRecipients(props.getProperty("to"));
+                    if (from == null || recipients == null || !data.exists()) {
+                        if (!f.delete())
+                            LOG.warning(TeleportaError.messageFor(0x6107, f.getAbsolutePath()));
+                        continue;
+                    }
+                    final UploadSession s = new UploadSession(id, from, recipients, data);
+                    s.touched = data.lastModified();
+                    sessions.put(id, s);
+                }
+            }
+        }
+        private static File sessionFile(UploadSession s) {
+            return new File(s.file.getParentFile(), String.format("f_%s%s", s.id, EXT_SESSION));
+        }
+    }
+    /**
+     * Content-addressed store for encrypted file content.
+     * Each blob is stored once, under SHA-256 hash of its encrypted data, and
+     * shared by all deliveries with same content. Each delivery holds a reference -
+     * empty marker file, named as target portal and file id.
+     * Reference is released when blob is downloaded or delivery is removed,
+     * blob is removed when there are no references and retention time passed.
+     * <p>
+     * Layout: storageDir/cas/[hash]/data + marker files
+     */
+    static class BlobStore {
+        static final String FOLDER = "cas", // blob store folder, inside relay storage
+                DATA = "data"; // blob content
+        private final File root;
+        private final long retention; // time to keep unused blob, in ms
+        // delivery references to blobs. Lost on restart, purge cleans such references
+        private final Map<String, String> deliveries = new HashMap<>();
+        BlobStore(File root, long retention) {
+            this.root = root;
+            this.retention = retention;
+        }
+        /**
+         * Checks for valid blob hash: hex encoded SHA-256
+         * @param hash
+         *          blob hash
+         * @return
+         *      true if valid
+         */
+        static boolean isValidHash(String hash) {
+            return hash != null && hash.matches("[0-9a-f]{64}");
+        }
+        /**
+         * Checks if blob present. Blob is marked as used,
+         * so it will not be removed before sender adds references
+         * @param hash
+         *          blob hash
+         * @return
+         *      true if blob is stored
+         */
+        synchronized boolean has(String hash) {
+            if (!isValidHash(hash))
+                return false;
+            final File f = new File(root, hash);
+            if (!new File(f, DATA).isFile())
+                return false;
+            touch(f);
+            return true;
+        }
+        /**
+         * Creates temp file for blob upload
+         * @param hash
+         *          blob hash
+         * @return
+         *      temp file
+         */
+        synchronized File newUpload(String hash) {
+            final File f = new File(root, hash);
+            checkCreateFolder(f);
+            touch(f);
+            return new File(f, String.format("%s_%d%s", DATA, generateUniqueID(), EXT_UPLOAD));
+        }
+        /**
+         * Publishes uploaded blob. If same blob was uploaded in parallel - upload is dropped
+         * @param hash
+         *          blob hash
+         * @param upload
+         *          uploaded data, hash must be verified
+         * @return
+         *      true if blob is stored
+         */
+        synchronized boolean commit(String hash, File upload) {
+            final File data = new File(upload.getParentFile(), DATA);
+            if (data.isFile() || !upload.renameTo(data)) {
+                if (!upload.delete())
+                    LOG.warning(TeleportaError.messageFor(0x6107, upload.getAbsolutePath()));
+            }
+            touch(upload.getParentFile());
+            return data.isFile();
+        }
+        /**
+         * Adds references from deliveries
+         * @param hash
+         *          blob hash
+         * @param fileId
+         *          delivery file id
+         * @param portals
+         *          target portals (internal ids)
+         * @return
+         *      false if blob not found
+         */
+        synchronized boolean addRefs(String hash, String fileId, List<String> portals) {
+            if (!has(hash))
+                return false;
+            final File f = new File(root, hash);
+            for (String p : portals)
+                try {
+                    final File r = ref(f, p, fileId);
+                    Files.createFile(r.toPath());
+                    deliveries.put(r.getName(), hash);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                    return false;
+                }
+            return true;
+        }
+        /**
+         * Get blob content for delivery
+         * @param hash
+         *          blob hash
+         * @param portal
+         *          target portal (internal id)
+         * @param fileId
+         *          delivery file id
+         * @return
+         *      blob content or null, if there is no reference from this delivery
+         */
+        synchronized File open(String hash, String portal, String fileId) {
+            if (!isValidHash(hash))
+                return null;
+            final File f = new File(root, hash), data = new File(f, DATA),
+                    r = ref(f, portal, fileId);
+            if (!r.isFile() || !data.isFile())
+                return null;
+            // reference could be created before relay restart
+            deliveries.put(r.getName(), hash);
+            return data;
+        }
+        /**
+         * Releases reference. Blob itself is removed later, by purge
+         * @param hash
+         *          blob hash
+         * @param portal
+         *          target portal (internal id)
+         * @param fileId
+         *          delivery file id
+         */
+        synchronized void release(String hash, String portal, String fileId) {
+            if (!isValidHash(hash))
+                return;
+            final File f = new File(root, hash), r = ref(f, portal, fileId);
+            deliveries.remove(r.getName());
+            if (r.exists() && !r.delete())
+                LOG.warning(TeleportaError.messageFor(0x6106, r.getAbsolutePath()));
+            touch(f);
+        }
+        /**
+         * Releases reference from confirmed delivery, if there is one
+         * @param portal
+         *          target portal (internal id)
+         * @param fileId
+         *          delivery file id
+         */
+        synchronized void release(String portal, String fileId) {
+            final String hash = deliveries.get(String.format("%s_%s",
+                    PK.toExternal(portal), PK.toExternal(fileId)));
+            if (hash != null)
+                release(hash, portal, fileId);
+        }
+        /**
+         * Removes stale references and unused blobs.
+         * Reference is stale, when its delivery file not exist anymore
+         * (expired or skipped by portal) and retention time passed.
+         * @param storageDir
+         *          relay storage folder
+         */
+        synchronized void purge(File storageDir) {
+            final File[] blobs = root.listFiles(File::isDirectory);
+            if (blobs == null)
+                return;
+            final long expired = System.currentTimeMillis() - retention;
+            for (File b : blobs) {
+                final File[] files = b.listFiles();
+                if (files == null)
+                    continue;
+                int refs = 0;
+                for (File r : files) {
+                    final String n = r.getName();
+                    if (n.equals(DATA))
+                        continue;
+                    if (r.lastModified() >= expired) {
+                        refs++;
+                        continue;
+                    }
+                    // old upload or reference without delivery
+                    final int sep = n.indexOf('_');
+                    if (!n.startsWith(DATA) && sep > 0 && new File(new File(storageDir,
+                            n.substring(0, sep)),
+                            String.format("f_%s%s", n.substring(sep + 1), EXT_FILE)).exists()) {
+                        refs++;
+                        continue;
+                    }
+                    deliveries.remove(n);
+                    if (!r.delete())
+                        LOG.warning(TeleportaError.messageFor(0x6106, r.getAbsolutePath()));
+                }
+                if (refs > 0 || b.lastModified() >= expired)
+                    continue;
+                if (LOG.isLoggable(Level.FINE))
+                    LOG.fine(TeleportaMessage.of("teleporta.system.message.removedUnusedBlob",
+                            b.getName()));
+                deleteRecursive(b, true, null);
+            }
+        }
+        private static File ref(File blob, String portal, String fileId) {
+            return new File(blob, String.format("%s_%s", PK.toExternal(portal),
+                    PK.toExternal(fileId)));
+        }
+        private static void touch(File f) {
+            // used only as a hint for purge, so result is ignored
+            f.setLastModified(System.currentTimeMillis());
         }
     }
     /***
@@ -1086,13 +3161,66 @@ public class TeleportaRelay {
         final int maxPortals, // max registered portals
                 maxPendingFilesAtOnce, // maximum pending files per package
                 nonDeliveredExpire, // expiration time for non-delivered files
-                portalExpireTimeout; // portal expiration time
+                portalExpireTimeout, // portal expiration time
+                pollTimeout, // max time to hold poll request (long-poll), 0 - disabled
+                liveTimeout, // max wait for next chunk of live upload, 0 - live uploads disabled
+                liveMaxWait, // max wait for next chunk, while sender is still uploading it
+                inlineSize, // max size of file, embedded into poll response, 0 - disabled
+                maxBatch, // max number of files, sent with single batch response, 0 - disabled
+                maxParkedPolls, // max number of poll requests, waiting at once
+                workers, // number of threads, processing requests
+                backlog, // max number of connections, waiting for accept
+                sessionRekey, // session key lifetime, 0 - session mode disabled
+                portalsChangeLog, // number of registry changes, kept for delta updates
+                blobRetention; // time to keep unused blobs, so same content could be sent again
+        final SyncPolicy uploadSync; // when to flush uploaded data to disk
+        final long uploadSyncInterval, // bytes between flushes, for 'periodic' policy
+                batchSize; // max size of files, sent with single batch response
         RelayLimits() {
             maxPortals = Integer.parseInt(System.getProperty("limits.maxPortals","500"));
             maxPendingFilesAtOnce = Integer.parseInt(System.getProperty("limits.maxPending","10"));
             nonDeliveredExpire = 60 * 60 * 1000 *
                     Integer.parseInt(System.getProperty("limits.nonDeliveredExpire","5"));
             portalExpireTimeout = 1000 * Integer.parseInt(System.getProperty("limits.portalTimeout","60"));
+            pollTimeout = 1000 * Integer.parseInt(System.getProperty("limits.pollTimeout","25"));
+            liveTimeout = 1000 * Integer.parseInt(System.getProperty("limits.liveTimeout","60"));
+            liveMaxWait = 1000 * Integer.parseInt(System.getProperty("limits.liveMaxWait","300"));
+            inlineSize = 1024 * Integer.parseInt(System.getProperty("limits.inlineSize","64"));
+            maxBatch = Integer.parseInt(System.getProperty("limits.maxBatch","1000"));
+            batchSize = 1024L * 1024 * Integer.parseInt(System.getProperty("limits.batchSize","64"));
+            // waiting polls don't hold threads
+            maxParkedPolls = Integer.parseInt(System.getProperty("limits.maxParkedPolls","5000"));
+            workers = Integer.parseInt(System.getProperty("limits.workers","255"));
+            backlog = Integer.parseInt(System.getProperty("limits.backlog","1024"));
+            sessionRekey = 60 * 1000 * Integer.parseInt(System.getProperty("limits.sessionRekey","60"));
+            portalsChangeLog = Integer.parseInt(System.getProperty("limits.portalsChangeLog","1024"));
+            blobRetention = 60 * 1000 * Integer.parseInt(System.getProperty("limits.blobRetention","60"));
+            uploadSync = SyncPolicy.parse(System.getProperty("uploadSync","none"));
+            uploadSyncInterval = 1024L * 1024 *
+                    Integer.parseInt(System.getProperty("uploadSyncInterval","64"));
+        }
+    }
+    /**
+     * Defines when uploaded data is forced to disk
+     */
+    enum SyncPolicy {
+        NONE, // rely on OS
+        COMPLETE, // once, when upload completes
+        PERIODIC; // after each 'uploadSyncInterval' bytes and on complete
+        /**
+         * Parse policy name
+         * @param name
+         *          policy name, case-insensitive
+         * @return
+         *      policy or NONE if name is unknown
+         */
+        static SyncPolicy parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                LOG.warning(TeleportaError.messageFor(0x7285, name));
+                return NONE;
+            }
         }
     }
     /**
@@ -1100,95 +3228,72 @@ public class TeleportaRelay {
      */
     static class RelayRuntimeContext {
         final File storageDir; // root storage folder, used on relay side
-        final Map<String, RuntimePortal> portals = new LinkedHashMap<>(); // all registered portals
-        final Map<String, String> portalNames = new LinkedHashMap<>(); // all registered portals names
+        final PortalRegistry portals; // all registered portals
         final KeyPair relayPair; // relay keys
         final boolean privateRelay, // if true - we operate in 'private relay' mode
                 allowClipboardTransfer, // if true - we allow clipboard transfers
                 respondVersion;
         final RelayLimits limits;
+        final AtomicInteger parkedPolls = new AtomicInteger(); // number of waiting polls
+        final PendingFiles pending = new PendingFiles(); // ready to download files
+        final BlobStore blobs; // deduplicated file content
+        final UploadSessions uploads = new UploadSessions(); // resumable uploads in progress
+        final Executor workers; // relay's request threads, also used to respond parked polls
         File currentCbFile; // current clipboard data
         RelayRuntimeContext(RelayLimits limits,File storageDir,
                             KeyPair kp,
-                            boolean privateRelay,boolean allowClipboardTransfer,boolean respondVersion) {
+                            boolean privateRelay,boolean allowClipboardTransfer,boolean respondVersion,
+                            Executor workers) {
             this.storageDir = storageDir;
+            this.workers = workers;
             this.relayPair = kp;
             this.privateRelay = privateRelay;
             this.allowClipboardTransfer = allowClipboardTransfer;
             this.respondVersion = respondVersion;
             this.limits = limits;
+            this.portals = new PortalRegistry(limits.portalsChangeLog);
+            this.blobs = new BlobStore(new File(storageDir, BlobStore.FOLDER), limits.blobRetention);
         }
     }
     /**
      * Checks and removes expired portals and undelivered files
      * @param rc
      * @return
+     *      names of expired portals
      */
     private static Set<String> removeExpired(RelayRuntimeContext rc) {
         final Set<String> expired = new HashSet<>();
-        for (String k : rc.portals.keySet()) {
-            final RuntimePortal p = rc.portals.get(k);
-            // check for other portals expiration
-            if (System.currentTimeMillis() - p.lastSeen > rc.limits.portalExpireTimeout)
-                expired.add(k);
-
-        }
-        // remove local folders for expired portals
-        if (!expired.isEmpty()) {
-            for (String k : expired) {
-                final RegisteredPortal p = rc.portals.remove(k);
-                rc.portalNames.remove(p.name);
-                // remove non-delivered files for expired portals
-                deleteRecursive(new File(rc.storageDir, p.name), true,EXT_FILE);
-                if (LOG.isLoggable(Level.FINE))
-                    LOG.fine(TeleportaMessage.of("teleporta.system.message.removedExpiredPortal", p.name));
-
-            }
-            // notify all other about removal
-            for (String k : rc.portals.keySet()) {
-                final RuntimePortal p = rc.portals.get(k);
-                p.needReloadPortals = true;
-            }
+        for (RegisteredPortal p : rc.portals.expire(rc.limits.portalExpireTimeout)) {
+            expired.add(p.name);
+            // note: non-delivered files are kept, because portal could re-register
+            // with same id. Otherwise, they will be removed on expiration
+            if (LOG.isLoggable(Level.FINE))
+                LOG.fine(TeleportaMessage.of("teleporta.system.message.removedExpiredPortal", p.name));
         }
         // second stage: check expiration on each file in relay store,
         //  which not yet delivered
-        for (String k : rc.portalNames.keySet()) {
-            final File relayParent = new File(rc.storageDir, k);
-            if (!relayParent.exists() || !relayParent.isDirectory())
-                continue;
-
-            // note: we limit number of processed files on each iteration
-            // because there could be too many of them
-            try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(relayParent.toPath())) {
-                int fileCounter = 1;
-                for (Path e : dirStream) {
-                    if (fileCounter > FILES_BULK_LIMIT)
-                        break;
-
-                    // ignore files not related to Teleporta
-                    if (!e.toString().toLowerCase().endsWith(EXT_FILE))
-                        continue;
-
-                    final File f = e.toFile();
-                    // check for file expiration
-                    if (System.currentTimeMillis() - f.lastModified() > rc.limits.nonDeliveredExpire) {
-                        if (!f.delete()) {
-                            LOG.warning(TeleportaError.messageFor(0x6106,
-                                    f.getAbsolutePath()));
-                            continue;
-                        } else {
-                            if (LOG.isLoggable(Level.FINE))
-                                LOG.fine(TeleportaMessage.of("teleporta.system.message.removedExpiredNonDeliveredFile",
-                                        f.getAbsolutePath()));
-
-                        }
-                    }
-                    fileCounter++;
-                }
-            } catch (IOException e) {
-                LOG.log(Level.WARNING, e.getMessage(), e);
+        // note: we limit number of processed files on each iteration
+        // because there could be too many of them
+        final Map<String, List<String>> expiredFiles = rc.pending.olderThan(
+                System.currentTimeMillis() - rc.limits.nonDeliveredExpire, FILES_BULK_LIMIT);
+        for (Map.Entry<String, List<String>> e : expiredFiles.entrySet()) {
+            final File relayParent = new File(rc.storageDir, e.getKey());
+            for (String id : e.getValue()) {
+                rc.pending.remove(e.getKey(), id);
+                removeSegments(relayParent, id);
+                final File f = new File(relayParent, String.format("f_%s%s", id, EXT_FILE));
+                if (f.exists() && !f.delete()) {
+                    LOG.warning(TeleportaError.messageFor(0x6106,
+                            f.getAbsolutePath()));
+                } else if (LOG.isLoggable(Level.FINE))
+                    LOG.fine(TeleportaMessage.of("teleporta.system.message.removedExpiredNonDeliveredFile",
+                            f.getAbsolutePath()));
             }
         }
+        // abandoned resumable uploads
+        rc.uploads.expire(System.currentTimeMillis() - rc.limits.nonDeliveredExpire);
+        // third stage: release references from removed files and drop unused blobs
+        rc.blobs.purge(rc.storageDir);
         return expired;
     }
 
@@ -1209,9 +3314,167 @@ public class TeleportaRelay {
                 .replaceAll(".{80}(?=.)", "$0\n"));
     }
 
-    static void renameUploadedFile(File out) {
+    /**
+     * Receives uploaded data into file.
+     * Reads are done in bulk, into a large reusable buffer, which is written to disk only when full.
+     * @param in
+     *          request body
+     * @param out
+     *          target file channel
+     * @param p
+     *          portal, which 'last seen' mark is updated during upload,
+     *          because it could be slow
+     * @param limits
+     *          relay limits, with sync policy
+     * @return
+     *      number of bytes received
+     * @throws IOException
+     *          on i/o errors
+     */
+    static long receiveFile(InputStream in, FileChannel out,
+                            RuntimePortal p, RelayLimits limits) throws IOException {
+        final ByteBuffer buf = takeBuffer();
+        final byte[] b = buf.array();
+        long total = 0, synced = 0, lastSeen = 0;
+        int filled = 0;
+        try {
+            for (int n; (n = in.read(b, filled, b.length - filled)) >= 0; ) {
+                filled += n;
+                if (filled < b.length)
+                    continue;
+                writeFully(out, buf, filled);
+                total += filled;
+                filled = 0;
+                if (limits.uploadSync == SyncPolicy.PERIODIC
+                        && total - synced >= limits.uploadSyncInterval) {
+                    out.force(false);
+                    synced = total;
+                }
+                final long now = System.currentTimeMillis();
+                if (now - lastSeen > 1000) {
+                    p.lastSeen = lastSeen = now;
+                }
+            }
+            if (filled > 0) {
+                writeFully(out, buf, filled);
+                total += filled;
+            }
+        } finally {
+            releaseBuffer(buf);
+        }
+        if (limits.uploadSync != SyncPolicy.NONE)
+            out.force(false);
+        p.lastSeen = System.currentTimeMillis();
+        return total;
+    }
+    private static void writeFully(FileChannel out, ByteBuffer buf, int len) throws IOException {
+        buf.clear();
+        buf.limit(len);
+        while (buf.hasRemaining())
+            out.write(buf);
+    }
+    /**
+     * Parses list of target portals, separated by comma
+     * @param src
+     *          portal ids in external form
+     * @return
+     *      internal portal ids without duplicates, or null if any of ids is malformed
+     */
+    static List<String> parseRecipients(String src) {
+        if (src == null || src.isEmpty())
+            return null;
+        final Set<String> out = new LinkedHashSet<>();
+        for (String s : src.split(",")) {
+            final String id = PK.fromExternal(s.trim());
+            if (id == null)
+                return null;
+            out.add(id);
+        }
+        return new ArrayList<>(out);
+    }
+    /**
+     * Publishes completely uploaded file for all recipients
+     * @param rc
+     *          relay context
+     * @param out
+     *          uploaded file (.upload), in first recipient's folder
+     * @param fileId
+     *          file id
+     * @param recipients
+     *          target portals (internal ids)
+     */
+    static void completeUpload(RelayRuntimeContext rc, File out, String fileId,
+                               List<String> recipients) {
+        // share with other recipients before file became visible,
+        // because first recipient could download and delete it
+        final List<String> delivered = new ArrayList<>(shareUploadedFile(out, fileId,
+                recipients.subList(1, recipients.size()), rc.storageDir));
+        if (renameUploadedFile(out))
+            delivered.add(0, recipients.get(0));
+        for (String r : delivered) {
+            rc.pending.add(PK.toExternal(r), fileId);
+            // wake up target portal, if it waits for files
+            final RuntimePortal rp = rc.portals.get(r);
+            if (rp != null)
+                rp.fileArrived();
+        }
+    }
+    /**
+     * Delivers completely uploaded file to other recipients.
+     * Hard links are used, so content is stored once and filesystem
+     * frees it after last recipient's link is deleted on download.
+     * If links are not supported - file is copied.
+     * @param out
+     *          uploaded file (.upload)
+     * @param fileId
+     *          file id
+     * @param recipients
+     *          other recipients (internal ids)
+     * @param storageDir
+     *          relay's storage folder
+     * @return
+     *      recipients, who got the file
+     */
+    static List<String> shareUploadedFile(File out, String fileId,
+                                          List<String> recipients, File storageDir) {
+        if (recipients.isEmpty())
+            return Collections.emptyList();
+        final List<String> delivered = new ArrayList<>(recipients.size());
+        final List<File> segments = listSegments(out.getParentFile(), fileId);
+        for (String r : recipients) {
+            final File toFolder = new File(storageDir, PK.toExternal(r));
+            checkCreateFolder(toFolder);
+            final Path target = new File(toFolder,
+                    String.format("f_%s%s", fileId, EXT_FILE)).toPath();
+            try {
+                // segments go first, file must be complete when it became visible
+                for (File seg : segments)
+                    linkFile(seg.toPath(), new File(toFolder, seg.getName()).toPath());
+                linkFile(out.toPath(), target);
+                delivered.add(r);
+            } catch (IOException e) {
+                LOG.warning(TeleportaError.messageFor(0x7278, fileId, r));
+            }
+        }
+        return delivered;
+    }
+    private static void linkFile(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    /**
+     * Renames completely uploaded file from .upload to .dat, so it became visible for portal
+     * @param out
+     *          uploaded file
+     * @return
+     *      true if file was renamed
+     */
+    static boolean renameUploadedFile(File out) {
         if (!out.exists())
-            return;
+            return false;
 
         // build target file, but with .DAT extension
         final File dat_out = new File(out.getParentFile(),
@@ -1223,14 +3486,16 @@ public class TeleportaRelay {
 
         if (LOG.isLoggable(Level.FINE))
             LOG.fine(TeleportaMessage.of("teleporta.system.message.fileUploaded",
-                    dat_out.getAbsolutePath()));
+                    dat_out.getAbsolutePath(), out.length()));
 
         // now move from .upload to .dat
         // note: this required to forbid cases when non-completed uploads will be fetched from client side
-        if (!out.renameTo(dat_out))
+        if (!out.renameTo(dat_out)) {
             LOG.warning(TeleportaError.messageFor(0x6115,
                     dat_out.getAbsolutePath()));
-
+            return false;
+        }
+        return true;
     }
 
 }